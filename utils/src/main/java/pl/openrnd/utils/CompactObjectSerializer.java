@@ -0,0 +1,655 @@
+/******************************************************************************
+ *
+ *  2015 (C) Copyright Open-RnD Sp. z o.o.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package pl.openrnd.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ObjectSerializer with compact binary format.
+ *
+ * Supported natively are primitive wrappers, strings, byte arrays, dates, enums, java.util lists,
+ * sets and maps and simple objects (POJOs). Class name and field names of an object are written
+ * only once per stream, values are tagged with their type, so added or removed fields are tolerated.
+ *
+ * Object is written natively if it implements Serializable, has a no-argument constructor
+ * and does not define custom serialization (writeObject(), readObject(), writeReplace(),
+ * readResolve() or Externalizable). Other values are written with standard Java serialization.
+ *
+ * Shared references are not preserved, every reference is written as a separate copy.
+ * Cyclic object graphs are not supported.
+ */
+public class CompactObjectSerializer implements ObjectSerializer {
+
+    private static final int MAGIC = 0xC0;
+    private static final int VERSION = 1;
+
+    private static final int TYPE_NULL = 0;
+    private static final int TYPE_TRUE = 1;
+    private static final int TYPE_FALSE = 2;
+    private static final int TYPE_BYTE = 3;
+    private static final int TYPE_SHORT = 4;
+    private static final int TYPE_CHAR = 5;
+    private static final int TYPE_INT = 6;
+    private static final int TYPE_LONG = 7;
+    private static final int TYPE_FLOAT = 8;
+    private static final int TYPE_DOUBLE = 9;
+    private static final int TYPE_STRING = 10;
+    private static final int TYPE_BYTE_ARRAY = 11;
+    private static final int TYPE_DATE = 12;
+    private static final int TYPE_ENUM = 13;
+    private static final int TYPE_LIST = 14;
+    private static final int TYPE_SET = 15;
+    private static final int TYPE_MAP = 16;
+    private static final int TYPE_OBJECT = 17;
+    private static final int TYPE_SERIALIZABLE = 18;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Map<Class<?>, ClassInfo> sClassInfos = new ConcurrentHashMap<Class<?>, ClassInfo>();
+
+    private final ClassLoader mClassLoader;
+    private final ObjectSerializer mFallbackSerializer = new JavaObjectSerializer();
+
+    /**
+     * Class constructor. Classes are loaded with the library's class loader.
+     */
+    public CompactObjectSerializer() {
+        this(CompactObjectSerializer.class.getClassLoader());
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param classLoader ClassLoader used for loading classes of deserialized objects.
+     */
+    public CompactObjectSerializer(ClassLoader classLoader) {
+        mClassLoader = classLoader;
+    }
+
+    @Override
+    public void serialize(Object object, OutputStream outputStream) throws IOException {
+        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+        dataOutputStream.writeByte(MAGIC);
+        dataOutputStream.writeByte(VERSION);
+        new Writer(dataOutputStream).writeValue(object);
+        dataOutputStream.flush();
+    }
+
+    @Override
+    public Object deserialize(InputStream inputStream) throws IOException {
+        DataInputStream dataInputStream = new DataInputStream(inputStream);
+        int magic = dataInputStream.readUnsignedByte();
+        int version = dataInputStream.readUnsignedByte();
+        if ((magic != MAGIC) || (version != VERSION)) {
+            throw new IOException(String.format("Unsupported format: magic[%d], version[%d]", magic, version));
+        }
+        return new Reader(dataInputStream).readValue();
+    }
+
+    private class Writer {
+        private final DataOutputStream mOut;
+        private final Map<Class<?>, Integer> mClasses = new HashMap<Class<?>, Integer>();
+        private final Map<Object, Object> mPath = new IdentityHashMap<Object, Object>();
+
+        private Writer(DataOutputStream out) {
+            mOut = out;
+        }
+
+        private void writeValue(Object value) throws IOException {
+            if (value == null) {
+                mOut.writeByte(TYPE_NULL);
+                return;
+            }
+
+            Class<?> clazz = value.getClass();
+            if (clazz == String.class) {
+                mOut.writeByte(TYPE_STRING);
+                writeString((String) value);
+            } else if (clazz == Integer.class) {
+                mOut.writeByte(TYPE_INT);
+                writeVarInt(mOut, zigZag((Integer) value));
+            } else if (clazz == Long.class) {
+                mOut.writeByte(TYPE_LONG);
+                writeVarLong(mOut, zigZag((Long) value));
+            } else if (clazz == Boolean.class) {
+                mOut.writeByte((Boolean) value ? TYPE_TRUE : TYPE_FALSE);
+            } else if (clazz == Double.class) {
+                mOut.writeByte(TYPE_DOUBLE);
+                mOut.writeDouble((Double) value);
+            } else if (clazz == Float.class) {
+                mOut.writeByte(TYPE_FLOAT);
+                mOut.writeFloat((Float) value);
+            } else if (clazz == Byte.class) {
+                mOut.writeByte(TYPE_BYTE);
+                mOut.writeByte((Byte) value);
+            } else if (clazz == Short.class) {
+                mOut.writeByte(TYPE_SHORT);
+                mOut.writeShort((Short) value);
+            } else if (clazz == Character.class) {
+                mOut.writeByte(TYPE_CHAR);
+                mOut.writeChar((Character) value);
+            } else if (clazz == byte[].class) {
+                byte[] bytes = (byte[]) value;
+                mOut.writeByte(TYPE_BYTE_ARRAY);
+                writeVarInt(mOut, bytes.length);
+                mOut.write(bytes);
+            } else if (clazz == Date.class) {
+                mOut.writeByte(TYPE_DATE);
+                mOut.writeLong(((Date) value).getTime());
+            } else if (value instanceof Enum) {
+                mOut.writeByte(TYPE_ENUM);
+                writeClass(((Enum<?>) value).getDeclaringClass(), null);
+                writeString(((Enum<?>) value).name());
+            } else if (isNativeCollection(value)) {
+                enter(value);
+                if (value instanceof Map) {
+                    writeMap((Map<?, ?>) value);
+                } else {
+                    writeCollection((value instanceof Set) ? TYPE_SET : TYPE_LIST, (Collection<?>) value);
+                }
+                leave(value);
+            } else if (!(value instanceof Serializable)) {
+                throw new NotSerializableException(clazz.getName());
+            } else {
+                ClassInfo classInfo = getClassInfo(clazz);
+                if (classInfo.isNative) {
+                    enter(value);
+                    writeObject(value, classInfo);
+                    leave(value);
+                } else {
+                    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+                    mFallbackSerializer.serialize(value, byteArrayOutputStream);
+                    mOut.writeByte(TYPE_SERIALIZABLE);
+                    writeVarInt(mOut, byteArrayOutputStream.size());
+                    byteArrayOutputStream.writeTo(mOut);
+                }
+            }
+        }
+
+        private void writeCollection(int type, Collection<?> collection) throws IOException {
+            mOut.writeByte(type);
+            writeClass(collection.getClass(), null);
+            writeVarInt(mOut, collection.size());
+            for (Object item : collection) {
+                writeValue(item);
+            }
+        }
+
+        private void writeMap(Map<?, ?> map) throws IOException {
+            mOut.writeByte(TYPE_MAP);
+            writeClass(map.getClass(), null);
+            writeVarInt(mOut, map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeValue(entry.getKey());
+                writeValue(entry.getValue());
+            }
+        }
+
+        private void writeObject(Object object, ClassInfo classInfo) throws IOException {
+            mOut.writeByte(TYPE_OBJECT);
+            writeClass(object.getClass(), classInfo.fields);
+            try {
+                for (Field field : classInfo.fields) {
+                    writeValue(field.get(object));
+                }
+            } catch (IllegalAccessException e) {
+                throw new IOException(e);
+            }
+        }
+
+        /**
+         * Writes class reference. Class name and field names are written only with the first reference.
+         */
+        private void writeClass(Class<?> clazz, Field[] fields) throws IOException {
+            Integer index = mClasses.get(clazz);
+            if (index != null) {
+                writeVarInt(mOut, index + 1);
+                return;
+            }
+
+            writeVarInt(mOut, 0);
+            writeString(clazz.getName());
+            if (fields != null) {
+                writeVarInt(mOut, fields.length);
+                for (Field field : fields) {
+                    writeString(field.getName());
+                }
+            }
+            mClasses.put(clazz, mClasses.size());
+        }
+
+        private void writeString(String text) throws IOException {
+            byte[] bytes = text.getBytes(UTF_8);
+            writeVarInt(mOut, bytes.length);
+            mOut.write(bytes);
+        }
+
+        private void enter(Object value) throws IOException {
+            if (mPath.put(value, value) != null) {
+                throw new IOException(String.format("Cyclic reference not supported: class[%s]", value.getClass().getName()));
+            }
+        }
+
+        private void leave(Object value) {
+            mPath.remove(value);
+        }
+    }
+
+    private class Reader {
+        private final DataInputStream mIn;
+        private final List<ClassEntry> mClasses = new ArrayList<ClassEntry>();
+
+        private Reader(DataInputStream in) {
+            mIn = in;
+        }
+
+        private Object readValue() throws IOException {
+            int type = mIn.readUnsignedByte();
+            switch (type) {
+                case TYPE_NULL:
+                    return null;
+                case TYPE_TRUE:
+                    return Boolean.TRUE;
+                case TYPE_FALSE:
+                    return Boolean.FALSE;
+                case TYPE_BYTE:
+                    return mIn.readByte();
+                case TYPE_SHORT:
+                    return mIn.readShort();
+                case TYPE_CHAR:
+                    return mIn.readChar();
+                case TYPE_INT:
+                    return unZigZag(readVarInt(mIn));
+                case TYPE_LONG:
+                    return unZigZag(readVarLong(mIn));
+                case TYPE_FLOAT:
+                    return mIn.readFloat();
+                case TYPE_DOUBLE:
+                    return mIn.readDouble();
+                case TYPE_STRING:
+                    return readString();
+                case TYPE_BYTE_ARRAY:
+                    byte[] bytes = new byte[readVarInt(mIn)];
+                    mIn.readFully(bytes);
+                    return bytes;
+                case TYPE_DATE:
+                    return new Date(mIn.readLong());
+                case TYPE_ENUM:
+                    return readEnum();
+                case TYPE_LIST:
+                case TYPE_SET:
+                    return readCollection(type);
+                case TYPE_MAP:
+                    return readMap();
+                case TYPE_OBJECT:
+                    return readObject();
+                case TYPE_SERIALIZABLE:
+                    byte[] data = new byte[readVarInt(mIn)];
+                    mIn.readFully(data);
+                    return mFallbackSerializer.deserialize(new ByteArrayInputStream(data));
+                default:
+                    throw new IOException(String.format("Unknown type[%d]", type));
+            }
+        }
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        private Object readEnum() throws IOException {
+            Class clazz = readClass(false).clazz;
+            String name = readString();
+            try {
+                return Enum.valueOf(clazz, name);
+            } catch (IllegalArgumentException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private Object readCollection(int type) throws IOException {
+            ClassEntry classEntry = readClass(false);
+            int size = readVarInt(mIn);
+
+            Collection<Object> result = (Collection<Object>) newInstance(classEntry.classInfo);
+            if (result == null) {
+                result = (type == TYPE_SET) ? new LinkedHashSet<Object>(size) : new ArrayList<Object>(size);
+            }
+            for (int i = 0; i < size; ++i) {
+                result.add(readValue());
+            }
+            return result;
+        }
+
+        @SuppressWarnings("unchecked")
+        private Object readMap() throws IOException {
+            ClassEntry classEntry = readClass(false);
+            int size = readVarInt(mIn);
+
+            Map<Object, Object> result = (Map<Object, Object>) newInstance(classEntry.classInfo);
+            if (result == null) {
+                result = new LinkedHashMap<Object, Object>(size);
+            }
+            for (int i = 0; i < size; ++i) {
+                Object key = readValue();
+                result.put(key, readValue());
+            }
+            return result;
+        }
+
+        private Object readObject() throws IOException {
+            ClassEntry classEntry = readClass(true);
+            Object result = newInstance(classEntry.classInfo);
+            if (result == null) {
+                throw new IOException(String.format("No default constructor: class[%s]", classEntry.clazz.getName()));
+            }
+
+            try {
+                for (Field field : classEntry.fields) {
+                    Object value = readValue();
+                    if ((field != null) && isAssignable(field.getType(), value)) {
+                        field.set(result, value);
+                    }
+                }
+            } catch (IllegalAccessException e) {
+                throw new IOException(e);
+            }
+
+            return result;
+        }
+
+        private ClassEntry readClass(boolean withFields) throws IOException {
+            int index = readVarInt(mIn);
+            if (index > 0) {
+                if (index > mClasses.size()) {
+                    throw new IOException(String.format("Unknown class reference[%d]", index));
+                }
+                return mClasses.get(index - 1);
+            }
+
+            String name = readString();
+            Class<?> clazz;
+            try {
+                clazz = Class.forName(name, false, mClassLoader);
+            } catch (ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+
+            ClassEntry result = new ClassEntry(clazz, getClassInfo(clazz));
+            if (withFields) {
+                result.fields = new Field[readVarInt(mIn)];
+                for (int i = 0; i < result.fields.length; ++i) {
+                    result.fields[i] = result.classInfo.findField(readString());
+                }
+            }
+            mClasses.add(result);
+
+            return result;
+        }
+
+        private String readString() throws IOException {
+            byte[] bytes = new byte[readVarInt(mIn)];
+            mIn.readFully(bytes);
+            return new String(bytes, UTF_8);
+        }
+
+        private Object newInstance(ClassInfo classInfo) throws IOException {
+            if (classInfo.constructor == null) {
+                return null;
+            }
+            try {
+                return classInfo.constructor.newInstance();
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /**
+     * Class reference read from the stream with fields resolved to current class definition.
+     */
+    private static class ClassEntry {
+        private final Class<?> clazz;
+        private final ClassInfo classInfo;
+        private Field[] fields;
+
+        private ClassEntry(Class<?> clazz, ClassInfo classInfo) {
+            this.clazz = clazz;
+            this.classInfo = classInfo;
+        }
+    }
+
+    /**
+     * Cached reflection data of a class.
+     */
+    private static class ClassInfo {
+        private final Constructor<?> constructor;
+        private final Field[] fields;
+        private final boolean isNative;
+
+        private ClassInfo(Class<?> clazz) {
+            boolean isPlainObject = !Collection.class.isAssignableFrom(clazz)
+                    && !Map.class.isAssignableFrom(clazz)
+                    && !Enum.class.isAssignableFrom(clazz)
+                    && !clazz.isArray();
+
+            constructor = findConstructor(clazz);
+            fields = isPlainObject ? findFields(clazz) : new Field[0];
+            //Fields are matched by name, so classes with shadowed fields use the fallback serializer
+            isNative = isPlainObject && (constructor != null) && !hasCustomSerialization(clazz)
+                    && !hasShadowedFields(fields);
+        }
+
+        private Field findField(String name) {
+            for (Field field : fields) {
+                if (field.getName().equals(name)) {
+                    return field;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static ClassInfo getClassInfo(Class<?> clazz) {
+        ClassInfo result = sClassInfos.get(clazz);
+        if (result == null) {
+            result = new ClassInfo(clazz);
+            sClassInfos.put(clazz, result);
+        }
+        return result;
+    }
+
+    private static boolean isNativeCollection(Object value) {
+        if (!(value instanceof Collection) && !(value instanceof Map)) {
+            return false;
+        }
+        if (!value.getClass().getName().startsWith("java.util.")) {
+            return false;
+        }
+        if ((value instanceof SortedMap) && (((SortedMap<?, ?>) value).comparator() != null)) {
+            return false;
+        }
+        if ((value instanceof SortedSet) && (((SortedSet<?>) value).comparator() != null)) {
+            return false;
+        }
+        return getClassInfo(value.getClass()).constructor != null;
+    }
+
+    private static Constructor<?> findConstructor(Class<?> clazz) {
+        if (Modifier.isAbstract(clazz.getModifiers())) {
+            return null;
+        }
+        try {
+            Constructor<?> result = clazz.getDeclaredConstructor();
+            result.setAccessible(true);
+            return result;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static Field[] findFields(Class<?> clazz) {
+        List<Field> result = new ArrayList<Field>();
+        while ((clazz != null) && (clazz != Object.class)) {
+            for (Field field : clazz.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers)) {
+                    field.setAccessible(true);
+                    result.add(field);
+                }
+            }
+            clazz = clazz.getSuperclass();
+        }
+        return result.toArray(new Field[result.size()]);
+    }
+
+    private static boolean hasShadowedFields(Field[] fields) {
+        Set<String> names = new HashSet<String>();
+        for (Field field : fields) {
+            if (!names.add(field.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasCustomSerialization(Class<?> clazz) {
+        if (Externalizable.class.isAssignableFrom(clazz)) {
+            return true;
+        }
+        while ((clazz != null) && (clazz != Object.class)) {
+            if (hasMethod(clazz, "writeObject", ObjectOutputStream.class)
+                    || hasMethod(clazz, "readObject", ObjectInputStream.class)
+                    || hasMethod(clazz, "writeReplace")
+                    || hasMethod(clazz, "readResolve")) {
+                return true;
+            }
+            clazz = clazz.getSuperclass();
+        }
+        return false;
+    }
+
+    private static boolean hasMethod(Class<?> clazz, String name, Class<?>... parameterTypes) {
+        try {
+            clazz.getDeclaredMethod(name, parameterTypes);
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private static boolean isAssignable(Class<?> type, Object value) {
+        if (value == null) {
+            return !type.isPrimitive();
+        }
+        if (type.isPrimitive()) {
+            return ((type == int.class) && (value instanceof Integer))
+                    || ((type == long.class) && (value instanceof Long))
+                    || ((type == boolean.class) && (value instanceof Boolean))
+                    || ((type == double.class) && (value instanceof Double))
+                    || ((type == float.class) && (value instanceof Float))
+                    || ((type == byte.class) && (value instanceof Byte))
+                    || ((type == short.class) && (value instanceof Short))
+                    || ((type == char.class) && (value instanceof Character));
+        }
+        return type.isInstance(value);
+    }
+
+    private static int zigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static int unZigZag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte(((int) value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            int b = in.readUnsignedByte();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
@@ -0,0 +1,73 @@
+/******************************************************************************
+ *
+ *  2015 (C) Copyright Open-RnD Sp. z o.o.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package pl.openrnd.utils;
+
+import android.content.Context;
+
+/**
+ * ObjectPreferences storing objects encrypted with AES-GCM.
+ *
+ * Key is provided by EncryptedObjectSerializer.KeyProvider object, e.g. from Android KeyStore.
+ * Objects stored in plain ObjectPreferences cannot be read by this class. Every object is
+ * authenticated together with its key name, so it cannot be read from another key.
+ *
+ * @see pl.openrnd.utils.EncryptedObjectSerializer
+ */
+public class EncryptedObjectPreferences extends ObjectPreferences {
+
+    private final EncryptedObjectSerializer mSerializer;
+
+    /**
+     * Class constructor.
+     *
+     * Objects are serialized with standard Java serialization.
+     *
+     * @param name SharedPreference name.
+     * @param context Current context.
+     * @param keyProvider KeyProvider object.
+     * @throws IllegalStateException If API level is lower than 19.
+     */
+    public EncryptedObjectPreferences(String name, Context context, EncryptedObjectSerializer.KeyProvider keyProvider) {
+        this(name, context, new JavaObjectSerializer(), keyProvider);
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param name SharedPreference name.
+     * @param context Current context.
+     * @param serializer ObjectSerializer object defining binary format of encrypted objects.
+     * @param keyProvider KeyProvider object.
+     * @throws IllegalStateException If API level is lower than 19.
+     */
+    public EncryptedObjectPreferences(String name, Context context, ObjectSerializer serializer,
+                                      EncryptedObjectSerializer.KeyProvider keyProvider) {
+        this(name, context, new EncryptedObjectSerializer(serializer, keyProvider));
+    }
+
+    private EncryptedObjectPreferences(String name, Context context, EncryptedObjectSerializer serializer) {
+        super(name, context, serializer);
+        mSerializer = serializer;
+    }
+
+    @Override
+    ObjectSerializer getSerializer(String name) {
+        return mSerializer.forKey(name);
+    }
+}
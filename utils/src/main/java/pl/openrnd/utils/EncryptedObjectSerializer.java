@@ -0,0 +1,220 @@
+/******************************************************************************
+ *
+ *  2015 (C) Copyright Open-RnD Sp. z o.o.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package pl.openrnd.utils;
+
+import android.os.Build;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * ObjectSerializer encrypting output of another serializer with AES-GCM.
+ *
+ * Objects are encrypted while being serialized, Cipher instances are pooled. Each object is
+ * encrypted with a random IV generated by the Cipher and authenticated. Encrypted data is decrypted
+ * and verified as a whole before it is deserialized, so modified data never reaches the serializer.
+ * Encrypted data has format: [format version][IV length][IV][ciphertext with tag].
+ *
+ * Serializer created with forKey() authenticates the key name as additional data, so encrypted
+ * data copied to another key is rejected. EncryptedObjectPreferences binds every object to its key.
+ *
+ * Requires GCMParameterSpec and Cipher.updateAAD(), available since API level 19.
+ *
+ * Encrypted data cannot be compressed, compression of ObjectPreferences should stay disabled.
+ *
+ * @see pl.openrnd.utils.EncryptedObjectPreferences
+ */
+public class EncryptedObjectSerializer implements ObjectSerializer {
+
+    /**
+     * Interface providing key used for encryption, e.g. from Android KeyStore.
+     */
+    public interface KeyProvider {
+
+        /**
+         * Gets AES key. Method is called for every serialized object, so the key should be cached.
+         *
+         * @return SecretKey object.
+         * @throws GeneralSecurityException If key is not available.
+         */
+        SecretKey getKey() throws GeneralSecurityException;
+    }
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int FORMAT_VERSION = 1;
+    private static final int TAG_LENGTH = 128;
+    private static final int BUFFER_SIZE = 1024;
+    private static final int CIPHER_POOL_SIZE = 4;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ObjectSerializer mSerializer;
+    private final KeyProvider mKeyProvider;
+    private final Deque<Cipher> mCiphers;
+    private final byte[] mAssociatedData;
+
+    /**
+     * Class constructor.
+     *
+     * @param serializer ObjectSerializer object defining binary format of encrypted objects.
+     * @param keyProvider KeyProvider object.
+     * @throws IllegalStateException If API level is lower than 19.
+     */
+    public EncryptedObjectSerializer(ObjectSerializer serializer, KeyProvider keyProvider) {
+        this(serializer, keyProvider, Build.VERSION.SDK_INT);
+    }
+
+    EncryptedObjectSerializer(ObjectSerializer serializer, KeyProvider keyProvider, int sdkVersion) {
+        if (sdkVersion < Build.VERSION_CODES.KITKAT) {
+            throw new IllegalStateException(String.format("AES-GCM requires API level %d, current[%d]",
+                    Build.VERSION_CODES.KITKAT, sdkVersion));
+        }
+
+        mSerializer = serializer;
+        mKeyProvider = keyProvider;
+        mCiphers = new ArrayDeque<Cipher>();
+        mAssociatedData = null;
+    }
+
+    private EncryptedObjectSerializer(EncryptedObjectSerializer serializer, byte[] associatedData) {
+        mSerializer = serializer.mSerializer;
+        mKeyProvider = serializer.mKeyProvider;
+        mCiphers = serializer.mCiphers;
+        mAssociatedData = associatedData;
+    }
+
+    /**
+     * Creates serializer authenticating encrypted data together with the key name.
+     *
+     * Returned serializer shares key and Ciphers with this one. Data serialized with it can be
+     * deserialized only by a serializer created for the same key name.
+     *
+     * @param name Key name under which the object is stored.
+     * @return EncryptedObjectSerializer object.
+     */
+    public EncryptedObjectSerializer forKey(String name) {
+        return new EncryptedObjectSerializer(this, name.getBytes(UTF_8));
+    }
+
+    @Override
+    public void serialize(Object object, OutputStream outputStream) throws IOException {
+        Cipher cipher = obtainCipher();
+        try {
+            //IV is generated by the Cipher, keys of Android KeyStore reject IVs provided by caller
+            cipher.init(Cipher.ENCRYPT_MODE, mKeyProvider.getKey());
+            byte[] iv = cipher.getIV();
+            if (mAssociatedData != null) {
+                cipher.updateAAD(mAssociatedData);
+            }
+
+            outputStream.write(FORMAT_VERSION);
+            outputStream.write(iv.length);
+            outputStream.write(iv);
+
+            //Buffering avoids Cipher calls for every written byte
+            OutputStream cipherOutputStream = new BufferedOutputStream(new CipherOutputStream(
+                    new ObjectSerializerUtils.NonClosingOutputStream(outputStream), cipher), BUFFER_SIZE);
+            ObjectSerializerUtils.serialize(object, mSerializer, cipherOutputStream);
+            //Closing writes the last block with authentication tag
+            cipherOutputStream.close();
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        } finally {
+            recycleCipher(cipher);
+        }
+    }
+
+    @Override
+    public Object deserialize(InputStream inputStream) throws IOException {
+        if (inputStream.read() != FORMAT_VERSION) {
+            throw new IOException("Unsupported encrypted data format");
+        }
+        int ivLength = inputStream.read();
+        if (ivLength <= 0) {
+            throw new IOException("Malformed encrypted data");
+        }
+        byte[] iv = new byte[ivLength];
+        for (int offset = 0; offset < ivLength; ) {
+            int count = inputStream.read(iv, offset, ivLength - offset);
+            if (count < 0) {
+                throw new IOException("Malformed encrypted data");
+            }
+            offset += count;
+        }
+
+        Cipher cipher = obtainCipher();
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, mKeyProvider.getKey(), new GCMParameterSpec(TAG_LENGTH, iv));
+            if (mAssociatedData != null) {
+                cipher.updateAAD(mAssociatedData);
+            }
+
+            ByteArrayOutputStream encrypted = new ByteArrayOutputStream(BUFFER_SIZE);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = inputStream.read(buffer)) >= 0) {
+                encrypted.write(buffer, 0, count);
+            }
+
+            //Authentication tag is verified before any decrypted data is deserialized
+            byte[] decrypted = cipher.doFinal(encrypted.toByteArray());
+            return mSerializer.deserialize(new ByteArrayInputStream(decrypted));
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        } finally {
+            recycleCipher(cipher);
+        }
+    }
+
+    private Cipher obtainCipher() throws IOException {
+        synchronized (mCiphers) {
+            Cipher cipher = mCiphers.poll();
+            if (cipher != null) {
+                return cipher;
+            }
+        }
+
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void recycleCipher(Cipher cipher) {
+        synchronized (mCiphers) {
+            if (mCiphers.size() < CIPHER_POOL_SIZE) {
+                mCiphers.push(cipher);
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/******************************************************************************
+ *
+ *  2015 (C) Copyright Open-RnD Sp. z o.o.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package pl.openrnd.utils;
+
+/**
+ * Holder of @PersistentObject field value which is restored on first access.
+ *
+ * If @PersistentObject field in PersistentApplication is declared as LazyPersistentObject,
+ * only the holder is created during restore and the stored object is deserialized
+ * with the first get() call. Holder which was never accessed is not written by save().
+ *
+ * @param <T> Type of the held object.
+ */
+public class LazyPersistentObject<T> {
+
+    private ObjectStorage mObjectStorage;
+    private String mName;
+    private RestoreErrorHandler mRestoreErrorHandler;
+    private T mValue;
+    private boolean mIsLoaded;
+
+    /**
+     * Class constructor. Creates holder with null value.
+     */
+    public LazyPersistentObject() {
+        mIsLoaded = true;
+    }
+
+    /**
+     * Class constructor. Creates holder of not yet restored object.
+     *
+     * @param objectStorage ObjectStorage object to restore the value from.
+     * @param name Key name under which the object is stored.
+     * @param restoreErrorHandler RestoreErrorHandler object notified if the object cannot be restored.
+     */
+    LazyPersistentObject(ObjectStorage objectStorage, String name, RestoreErrorHandler restoreErrorHandler) {
+        mObjectStorage = objectStorage;
+        mName = name;
+        mRestoreErrorHandler = restoreErrorHandler;
+        mIsLoaded = false;
+    }
+
+    /**
+     * Gets held object, restoring it if needed.
+     *
+     * @return Held object or null if the object could not be restored.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized T get() {
+        if (!mIsLoaded) {
+            try {
+                mValue = (T) mObjectStorage.getObject(mName);
+            } catch (RuntimeException e) {
+                mValue = null;
+                mRestoreErrorHandler.onRestoreError(mName, e);
+            }
+            mIsLoaded = true;
+            mObjectStorage = null;
+            mRestoreErrorHandler = null;
+        }
+        return mValue;
+    }
+
+    /**
+     * Sets held object. Stored object is not restored anymore.
+     *
+     * @param value Object to be held.
+     */
+    public synchronized void set(T value) {
+        mValue = value;
+        mIsLoaded = true;
+        mObjectStorage = null;
+        mRestoreErrorHandler = null;
+    }
+
+    /**
+     * Checks if held object was already restored or set.
+     *
+     * @return True if object is available without restoring, false otherwise.
+     */
+    public synchronized boolean isLoaded() {
+        return mIsLoaded;
+    }
+
+    /**
+     * Interface for handling errors of restoring held objects.
+     */
+    interface RestoreErrorHandler {
+        void onRestoreError(String name, RuntimeException error);
+    }
+}
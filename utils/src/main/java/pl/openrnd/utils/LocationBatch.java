@@ -0,0 +1,153 @@
+/******************************************************************************
+ *
+ *  2015 (C) Copyright Open-RnD Sp. z o.o.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package pl.openrnd.utils;
+
+import android.location.Location;
+
+/**
+ * Batch of location fixes kept in primitive arrays.
+ *
+ * Used as a ring buffer, when it is full the oldest fix is overwritten. Fixes are indexed
+ * from the oldest one (0) to the newest one (size() - 1).
+ */
+public class LocationBatch {
+
+    private final double[] mLatitudes;
+    private final double[] mLongitudes;
+    private final float[] mAccuracies;
+    private final long[] mTimes;
+
+    private int mFirst;
+    private int mSize;
+
+    /**
+     * Class constructor
+     *
+     * @param capacity Maximal number of kept fixes.
+     */
+    public LocationBatch(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        mLatitudes = new double[capacity];
+        mLongitudes = new double[capacity];
+        mAccuracies = new float[capacity];
+        mTimes = new long[capacity];
+    }
+
+    /**
+     * Adds location fix, overwriting the oldest one if the batch is full.
+     *
+     * @param location Location object.
+     */
+    public void add(Location location) {
+        add(location.getLatitude(), location.getLongitude(), location.getAccuracy(), location.getTime());
+    }
+
+    /**
+     * Adds location fix, overwriting the oldest one if the batch is full.
+     *
+     * @param latitude Latitude in degrees.
+     * @param longitude Longitude in degrees.
+     * @param accuracy Accuracy in meters.
+     * @param time UTC time of the fix in milliseconds since epoch.
+     */
+    public void add(double latitude, double longitude, float accuracy, long time) {
+        int index;
+        if (mSize < mTimes.length) {
+            index = (mFirst + mSize) % mTimes.length;
+            ++mSize;
+        } else {
+            index = mFirst;
+            mFirst = (mFirst + 1) % mTimes.length;
+        }
+
+        mLatitudes[index] = latitude;
+        mLongitudes[index] = longitude;
+        mAccuracies[index] = accuracy;
+        mTimes[index] = time;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int capacity() {
+        return mTimes.length;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public boolean isFull() {
+        return mSize == mTimes.length;
+    }
+
+    public void clear() {
+        mFirst = 0;
+        mSize = 0;
+    }
+
+    public double getLatitude(int index) {
+        return mLatitudes[toArrayIndex(index)];
+    }
+
+    public double getLongitude(int index) {
+        return mLongitudes[toArrayIndex(index)];
+    }
+
+    public float getAccuracy(int index) {
+        return mAccuracies[toArrayIndex(index)];
+    }
+
+    public long getTime(int index) {
+        return mTimes[toArrayIndex(index)];
+    }
+
+    /**
+     * Copies fixes to a new batch with capacity equal to the current size.
+     *
+     * @return LocationBatch object or null if the batch is empty.
+     */
+    public LocationBatch copy() {
+        if (mSize == 0) {
+            return null;
+        }
+
+        LocationBatch result = new LocationBatch(mSize);
+        for (int i = 0; i < mSize; ++i) {
+            int index = toArrayIndex(i);
+            result.add(mLatitudes[index], mLongitudes[index], mAccuracies[index], mTimes[index]);
+        }
+        return result;
+    }
+
+    private int toArrayIndex(int index) {
+        if ((index < 0) || (index >= mSize)) {
+            throw new IndexOutOfBoundsException(String.format("index %d, size %d", index, mSize));
+        }
+        return (mFirst + index) % mTimes.length;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LocationBatch [size=%d]", mSize);
+    }
+}
@@ -0,0 +1,135 @@
+/******************************************************************************
+ *
+ *  2015 (C) Copyright Open-RnD Sp. z o.o.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package pl.openrnd.utils;
+
+/**
+ * Gathers location fixes into a LocationBatch and decides when the batch is delivered.
+ *
+ * Batch is delivered when it is full, when its oldest fix waits for the max latency and at
+ * the end of a burst of late fixes held by the location provider. Times are passed by
+ * the caller in SystemClock.elapsedRealtime() base.
+ */
+abstract class LocationBatcher {
+
+    /**
+     * Time in millis without new locations after which a burst of locations held by the provider is finished.
+     */
+    static final long BURST_END_DELAY = 200;
+
+    private final LocationBatch mBatch;
+    private final long mLateFixAge;
+    private long mMaxLatency;
+    /**
+     * Elapsed realtime of the oldest location in the batch.
+     */
+    private long mOldestFixTime;
+
+    /**
+     * Class constructor
+     *
+     * @param capacity Maximal number of locations in a batch.
+     * @param maxLatency Maximal time in millis a location waits for delivery.
+     * @param lateFixAge Age in millis of a location fix after which it is considered held by the provider.
+     */
+    LocationBatcher(int capacity, long maxLatency, long lateFixAge) {
+        mBatch = new LocationBatch(capacity);
+        mMaxLatency = maxLatency;
+        mLateFixAge = lateFixAge;
+    }
+
+    /**
+     * Schedules delivery of the batch, replacing previously scheduled delivery.
+     *
+     * Called with the batcher lock held.
+     *
+     * @param delay Delay in millis.
+     */
+    abstract void scheduleFlush(long delay);
+
+    /**
+     * Cancels scheduled delivery of the batch.
+     *
+     * Called with the batcher lock held.
+     */
+    abstract void cancelFlush();
+
+    synchronized long getMaxLatency() {
+        return mMaxLatency;
+    }
+
+    /**
+     * Sets maximal time a location waits for delivery, measured from the time of the location fix.
+     *
+     * @param maxLatency Value in millis.
+     * @param now Current elapsed realtime.
+     */
+    synchronized void setMaxLatency(long maxLatency, long now) {
+        mMaxLatency = Math.max(maxLatency, 0);
+        if (!mBatch.isEmpty()) {
+            //Pending flush was scheduled with the previous latency
+            scheduleFlush(mOldestFixTime + mMaxLatency - now);
+        }
+    }
+
+    /**
+     * Adds location fix to the batch.
+     *
+     * @param latitude Latitude in degrees.
+     * @param longitude Longitude in degrees.
+     * @param accuracy Accuracy in meters.
+     * @param time UTC time of the fix in milliseconds since epoch.
+     * @param fixTime Elapsed realtime of the fix.
+     * @param now Current elapsed realtime.
+     * @return True if the batch should be delivered immediately, false otherwise.
+     */
+    synchronized boolean add(double latitude, double longitude, float accuracy, long time, long fixTime, long now) {
+        boolean isFirst = mBatch.isEmpty();
+        boolean isOldest = isFirst || (fixTime < mOldestFixTime);
+        if (isOldest) {
+            mOldestFixTime = fixTime;
+        }
+        mBatch.add(latitude, longitude, accuracy, time);
+
+        long delay = mOldestFixTime + mMaxLatency - now;
+        if (mBatch.isFull() || (delay <= -BURST_END_DELAY)) {
+            return true;
+        }
+
+        if ((delay <= 0) || (now - fixTime > mLateFixAge)) {
+            //Late locations come in a burst, the rest of the burst is delivered in the same batch
+            scheduleFlush(Math.min(delay + BURST_END_DELAY, BURST_END_DELAY));
+        } else if (isOldest) {
+            scheduleFlush(delay);
+        }
+        return false;
+    }
+
+    /**
+     * Takes gathered locations and cancels scheduled delivery.
+     *
+     * @return LocationBatch object or null if no locations were gathered.
+     */
+    synchronized LocationBatch flush() {
+        cancelFlush();
+        LocationBatch result = mBatch.copy();
+        mBatch.clear();
+        return result;
+    }
+}
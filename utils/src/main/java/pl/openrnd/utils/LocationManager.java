@@ -24,7 +24,9 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentSender;
 import android.location.Location;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.google.android.gms.common.ConnectionResult;
@@ -35,6 +37,7 @@ import com.google.android.gms.location.LocationRequest;
 import com.google.android.gms.location.LocationServices;
 
 import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * LocationManagera
@@ -44,20 +47,37 @@ public class LocationManager {
 
     public static final int REQUEST_LOCATION_ERROR = 9000;
 
+    /**
+     * Maximal number of locations delivered in a single batch.
+     */
+    public static final int MAX_BATCH_SIZE = 100;
+
+    private static final long DEFAULT_BATCH_MAX_LATENCY = 60 * 1000;
+
     private final long ONE_SECOND = 1000;
     private long mLocationInterval = ONE_SECOND * 15;
     private long mFastLocationInterval = ONE_SECOND * 5;
     private int mPriority = LocationRequest.PRIORITY_HIGH_ACCURACY;
     private int mSmallestDisplacement;
 
+    private LocationScheduler mLocationScheduler;
+    private Location mPreviousLocation;
+
     private GoogleApiClient mGoogleApiClient;
     private Location mLastLocation;
     private LocationRequest mLocationRequest;
     private ObjectListenerHandler<LocationListener> mExternalLocationListeners;
+    private ObjectListenerHandler<LocationBatchListener> mLocationBatchListeners;
+    private LocationBatcher mLocationBatcher;
+    private UiHandler mUiHandler;
 
     private Dialog mDialogError;
 
-    private Boolean mAreLocationUpdatesRequested = false;
+    /**
+     * Guards state of location updates and parameters of the location request.
+     */
+    private final Object mLock = new Object();
+    private boolean mAreLocationUpdatesRequested = false;
     private boolean mIsRegistrationPending = false;
 
     private Context mContext;
@@ -65,6 +85,19 @@ public class LocationManager {
     // Bool to track whether the app is already resolving an error
     private boolean mResolvingError = false;
 
+    /**
+     * Interface definition for a callback receiving batches of locations.
+     */
+    public interface LocationBatchListener {
+
+        /**
+         * Called with locations gathered since the previous batch.
+         *
+         * @param batch LocationBatch object, it is not modified after delivery.
+         */
+        void onLocationBatch(LocationBatch batch);
+    }
+
 
     /**
      * Class constructor
@@ -111,7 +144,26 @@ public class LocationManager {
     private void initData() {
         Log.d(TAG, "initData()");
         mExternalLocationListeners = new ObjectListenerHandler<LocationListener>();
+        mExternalLocationListeners.setOnEmptyListener(mOnListenersEmptyListener);
+        mLocationBatchListeners = new ObjectListenerHandler<LocationBatchListener>();
+        mLocationBatchListeners.setOnEmptyListener(mOnListenersEmptyListener);
+        mUiHandler = new UiHandler();
+        mLocationScheduler = new LocationScheduler(mLocationInterval, mFastLocationInterval, mPriority, mSmallestDisplacement);
+        mLocationBatcher = new LocationBatcher(MAX_BATCH_SIZE, DEFAULT_BATCH_MAX_LATENCY, mFastLocationInterval) {
+
+            @Override
+            void scheduleFlush(long delay) {
+                mUiHandler.removeCallbacks(mFlushLocationBatchRunnable);
+                mUiHandler.postDelayed(mFlushLocationBatchRunnable, Math.max(delay, 0));
+            }
+
+            @Override
+            void cancelFlush() {
+                mUiHandler.removeCallbacks(mFlushLocationBatchRunnable);
+            }
+        };
         setUpGoogleApiClientIfNeeded();
+        updateRequestParameters();
         createLocationRequest();
         connect();
     }
@@ -136,6 +188,7 @@ public class LocationManager {
     public void reconnect(){
         stopLocation();
         setUpGoogleApiClientIfNeeded();
+        updateRequestParameters();
         createLocationRequest();
         connect();
     }
@@ -153,20 +206,58 @@ public class LocationManager {
     private void createLocationRequest() {
         Log.d(TAG, "createLocationRequest()");
         mLocationRequest = LocationRequest.create();
-        mLocationRequest.setPriority(mPriority);
-        mLocationRequest.setInterval(mLocationInterval);
-        mLocationRequest.setFastestInterval(mFastLocationInterval);
-        mLocationRequest.setSmallestDisplacement(mSmallestDisplacement);
+        mLocationRequest.setPriority(mLocationScheduler.getPriority());
+        mLocationRequest.setInterval(mLocationScheduler.getInterval());
+        mLocationRequest.setFastestInterval(mLocationScheduler.getFastInterval());
+        mLocationRequest.setSmallestDisplacement(mLocationScheduler.getSmallestDisplacement());
+        mLocationRequest.setMaxWaitTime(mLocationScheduler.getMaxWaitTime());
+    }
+
+    /**
+     * Computes parameters of the location request from the most demanding listener and,
+     * if adaptive scheduling is enabled, from the measured movement, see LocationScheduler.
+     *
+     * Lets the location provider deliver locations in bursts when only batch listeners are registered.
+     *
+     * @return True if parameters changed enough to re-request location updates, false otherwise.
+     */
+    private boolean updateRequestParameters() {
+        int locationListenersCount = mExternalLocationListeners.getListenerCount();
+        int listenersCount = locationListenersCount + mLocationBatchListeners.getListenerCount();
+        long maxWaitTime = ((locationListenersCount == 0) && (listenersCount > 0)) ? mLocationBatcher.getMaxLatency() : 0;
+
+        return mLocationScheduler.update(listenersCount, maxWaitTime, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Re-requests location updates on the connected GoogleApiClient if parameters of
+     * the location request changed.
+     */
+    private void updateLocationRequest() {
+        synchronized (mLock) {
+            if (updateRequestParameters()) {
+                Log.d(TAG, String.format("updateLocationRequest(): interval[%d], priority[%d]",
+                        mLocationScheduler.getInterval(), mLocationScheduler.getPriority()));
+                createLocationRequest();
+
+                if (mAreLocationUpdatesRequested && mGoogleApiClient.isConnected()) {
+                    LocationServices.FusedLocationApi.requestLocationUpdates(
+                            mGoogleApiClient,
+                            mLocationRequest,
+                            mLocationListener);
+                }
+            }
+        }
     }
 
     private boolean areLocationUpdatesRequested() {
-        synchronized (mAreLocationUpdatesRequested) {
+        synchronized (mLock) {
             return mAreLocationUpdatesRequested;
         }
     }
 
     private void registerLocationUpdates() {
-        synchronized (mAreLocationUpdatesRequested) {
+        synchronized (mLock) {
             if (mGoogleApiClient.isConnected()) {
                 LocationServices.FusedLocationApi.requestLocationUpdates(
                         mGoogleApiClient,
@@ -181,7 +272,7 @@ public class LocationManager {
     }
 
     private void unregisterLocationUpdates() {
-        synchronized (mAreLocationUpdatesRequested) {
+        synchronized (mLock) {
             if (mGoogleApiClient.isConnected()) {
                 LocationServices.FusedLocationApi.removeLocationUpdates(mGoogleApiClient, mLocationListener);
             }
@@ -189,15 +280,23 @@ public class LocationManager {
             mIsRegistrationPending = false;
             mAreLocationUpdatesRequested = false;
         }
+
+        flushLocationBatch();
     }
 
     private LocationListener mLocationListener = new LocationListener() {
 
         @Override
         public void onLocationChanged(Location location) {
-            Log.d(TAG, String.format("onLocationChanged(): location[%s]", location));
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, String.format("onLocationChanged(): location[%s]", location));
+            }
             mLastLocation = location;
             notifyLocationChange(mLastLocation);
+            addToLocationBatch(location);
+            if (mLocationScheduler.isAdaptive()) {
+                measureMovement(location);
+            }
         }
     };
 
@@ -207,7 +306,7 @@ public class LocationManager {
         public void onConnected(Bundle dataBundle) {
             Log.d(TAG, "onConnected()");
 
-            synchronized (mAreLocationUpdatesRequested) {
+            synchronized (mLock) {
                 if (mIsRegistrationPending) {
                     registerLocationUpdates();
                     mIsRegistrationPending = false;
@@ -278,30 +377,238 @@ public class LocationManager {
      * @param listener which return location data, when return null Options Location in system is disabled
      */
     public void addLocationListener(LocationListener listener) {
-        if ((mExternalLocationListeners.registerObjectWeakListener(listener) > 0) && !areLocationUpdatesRequested()) {
-            registerLocationUpdates();
-        }
+        addLocationListener(listener, null);
+    }
+
+    /**
+     * Adds listener notified on provided target, e.g. new UiHandler() for the main thread.
+     *
+     * Locations delivered in a burst are posted to the target with a single Runnable.
+     *
+     * @param listener which return location data, when return null Options Location in system is disabled
+     * @param target Executor on which the listener is notified or null for the thread delivering locations
+     */
+    public void addLocationListener(LocationListener listener, Executor target) {
+        mExternalLocationListeners.registerObjectWeakListener(listener, target);
+        mLocationScheduler.removeDemand(listener);
+        onListenersChanged();
+    }
+
+    /**
+     * Adds listener with its own requirements of location updates.
+     *
+     * Location updates are requested with the shortest interval and the highest priority
+     * demanded by registered listeners.
+     *
+     * @param listener which return location data, when return null Options Location in system is disabled
+     * @param target Executor on which the listener is notified or null for the thread delivering locations
+     * @param interval Demanded interval in millis
+     * @param priority Demanded priority of location, e.g. LocationRequest.PRIORITY_HIGH_ACCURACY
+     */
+    public void addLocationListener(LocationListener listener, Executor target, long interval, int priority) {
+        mExternalLocationListeners.registerObjectWeakListener(listener, target);
+        mLocationScheduler.setDemand(listener, interval, priority);
+        onListenersChanged();
     }
 
     public void removeLocationListener(LocationListener listener) {
-        if ((mExternalLocationListeners.unregisterObjectWeakListener(listener) == 0) && areLocationUpdatesRequested()) {
+        mExternalLocationListeners.unregisterObjectWeakListener(listener);
+        mLocationScheduler.removeDemand(listener);
+        onListenersChanged();
+    }
+
+    /**
+     * Enables adapting location request to the measured movement.
+     *
+     * When the device is stationary location updates are requested less often and with balanced
+     * power accuracy, while moving the interval is adjusted to the speed. Only the interval and
+     * priority passed to the constructor are adapted, intervals and priorities demanded by
+     * listeners are always met. Location updates are re-requested without reconnecting.
+     *
+     * @param enabled True to enable adaptive scheduling, false otherwise. Default is false.
+     */
+    public void setAdaptiveSchedulingEnabled(boolean enabled) {
+        synchronized (mLock) {
+            mPreviousLocation = null;
+            mLocationScheduler.setAdaptive(enabled);
+        }
+        updateLocationRequest();
+    }
+
+    public boolean isAdaptiveSchedulingEnabled() {
+        return mLocationScheduler.isAdaptive();
+    }
+
+    /**
+     * Updates speed and stationary state with a new location.
+     *
+     * Speed is taken from the location or computed from the distance to the previous location.
+     * Distance within accuracy of locations is treated as no movement.
+     */
+    private void measureMovement(Location location) {
+        if (location == null) {
+            return;
+        }
+
+        synchronized (mLock) {
+            float speed = -1;
+            if (location.hasSpeed()) {
+                speed = location.getSpeed();
+            } else if ((mPreviousLocation != null) && (location.getTime() > mPreviousLocation.getTime())) {
+                float distance = location.distanceTo(mPreviousLocation);
+                if (distance <= Math.max(location.getAccuracy(), mPreviousLocation.getAccuracy())) {
+                    distance = 0;
+                }
+                speed = distance * ONE_SECOND / (location.getTime() - mPreviousLocation.getTime());
+            }
+            mPreviousLocation = location;
+
+            if (speed < 0) {
+                return;
+            }
+            mLocationScheduler.setSpeed(speed, SystemClock.elapsedRealtime());
+        }
+        updateLocationRequest();
+    }
+
+    /**
+     * Adds listener receiving locations in batches.
+     *
+     * When only batch listeners are added, the location provider is allowed to deliver locations
+     * with a delay up to the batch max latency, which reduces device wakeups.
+     *
+     * @param listener LocationBatchListener object, kept as a weak reference.
+     */
+    public void addLocationBatchListener(LocationBatchListener listener) {
+        addLocationBatchListener(listener, null);
+    }
+
+    /**
+     * Adds listener receiving locations in batches on provided target.
+     *
+     * @param listener LocationBatchListener object, kept as a weak reference.
+     * @param target Executor on which the listener is notified or null for the thread delivering locations
+     */
+    public void addLocationBatchListener(LocationBatchListener listener, Executor target) {
+        mLocationBatchListeners.registerObjectWeakListener(listener, target);
+        onListenersChanged();
+    }
+
+    public void removeLocationBatchListener(LocationBatchListener listener) {
+        mLocationBatchListeners.unregisterObjectWeakListener(listener);
+        onListenersChanged();
+    }
+
+    /**
+     * Sets maximal time a location waits for delivery in a batch.
+     *
+     * Time is measured from the time of the location fix, so it includes the time the location
+     * was held by the provider. Batch is also delivered when it reaches MAX_BATCH_SIZE locations
+     * and at the end of a burst of locations held by the provider.
+     *
+     * @param maxLatency Value in millis. Default is set 60 sec
+     */
+    public void setBatchMaxLatency(long maxLatency) {
+        mLocationBatcher.setMaxLatency(maxLatency, SystemClock.elapsedRealtime());
+        updateLocationRequest();
+    }
+
+    /**
+     * Delivers pending batch of locations immediately.
+     */
+    public void flushLocationBatch() {
+        LocationBatch batch = mLocationBatcher.flush();
+        if (batch != null) {
+            mLocationBatchListeners.notifyObjectChange(LOCATION_BATCH_HANDLER, batch);
+        }
+    }
+
+    private void addToLocationBatch(Location location) {
+        if ((location == null) || (mLocationBatchListeners.getListenerCount() == 0)) {
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        long fixTime = getElapsedRealtime(location, now);
+        if (mLocationBatcher.add(location.getLatitude(), location.getLongitude(), location.getAccuracy(),
+                location.getTime(), fixTime, now)) {
+            flushLocationBatch();
+        }
+    }
+
+    /**
+     * Returns time of the location fix in SystemClock.elapsedRealtime() base.
+     */
+    private static long getElapsedRealtime(Location location, long now) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            long time = location.getElapsedRealtimeNanos() / 1000000;
+            if (time > 0) {
+                return Math.min(time, now);
+            }
+        }
+        //UTC time of the fix may differ from the system clock, it is used only for older systems
+        long age = (location.getTime() > 0) ? Math.max(System.currentTimeMillis() - location.getTime(), 0) : 0;
+        return now - age;
+    }
+
+    private Runnable mFlushLocationBatchRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            flushLocationBatch();
+        }
+    };
+
+    /**
+     * Requests location updates while any listener is added, stops them otherwise.
+     */
+    private void onListenersChanged() {
+        if ((mExternalLocationListeners.getListenerCount() > 0) || (mLocationBatchListeners.getListenerCount() > 0)) {
+            updateLocationRequest();
+            if (!areLocationUpdatesRequested()) {
+                registerLocationUpdates();
+            }
+        } else if (areLocationUpdatesRequested()) {
             unregisterLocationUpdates();
         }
     }
 
+    /**
+     * Stops location updates when all listeners were removed or garbage collected.
+     */
+    private ObjectListenerHandler.OnEmptyListener mOnListenersEmptyListener = new ObjectListenerHandler.OnEmptyListener() {
+
+        @Override
+        public void onEmpty() {
+            Log.d(TAG, "onEmpty()");
+            onListenersChanged();
+        }
+    };
+
     public Location getLastKnowLocation() {
         return mLastLocation;
     }
 
-    private void notifyLocationChange(final Location location) {
-        mExternalLocationListeners.notifyObjectChange(new ObjectListenerHandler.NotificationHandler<LocationListener>() {
-            @Override
-            public void runOnListener(LocationListener listener) {
-                listener.onLocationChanged(location);
-            }
-        });
+    private void notifyLocationChange(Location location) {
+        mExternalLocationListeners.notifyObjectChange(LOCATION_CHANGED_HANDLER, location);
     }
 
+    private static final ObjectListenerHandler.EventHandler<LocationListener, Location> LOCATION_CHANGED_HANDLER =
+            new ObjectListenerHandler.EventHandler<LocationListener, Location>() {
+                @Override
+                public void runOnListener(LocationListener listener, Location location) {
+                    listener.onLocationChanged(location);
+                }
+            };
+
+    private static final ObjectListenerHandler.EventHandler<LocationBatchListener, LocationBatch> LOCATION_BATCH_HANDLER =
+            new ObjectListenerHandler.EventHandler<LocationBatchListener, LocationBatch>() {
+                @Override
+                public void runOnListener(LocationBatchListener listener, LocationBatch batch) {
+                    listener.onLocationBatch(batch);
+                }
+            };
+
     public boolean isLocationEnable() {
         android.location.LocationManager locationManager = (android.location.LocationManager) mContext.getSystemService(Context.LOCATION_SERVICE);
         List<String> providers = locationManager.getAllProviders();
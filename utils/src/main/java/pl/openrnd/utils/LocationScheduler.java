@@ -0,0 +1,234 @@
+/******************************************************************************
+ *
+ *  2015 (C) Copyright Open-RnD Sp. z o.o.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package pl.openrnd.utils;
+
+import com.google.android.gms.location.LocationRequest;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Computes parameters of the location request from demands of listeners and, if adaptive
+ * scheduling is enabled, from the measured movement.
+ *
+ * Only default parameters are adapted to the movement, demands of listeners cap the interval
+ * and bound the priority. Times are passed by the caller in SystemClock.elapsedRealtime() base.
+ */
+class LocationScheduler {
+
+    private static final long ONE_SECOND = 1000;
+
+    /**
+     * Speed in m/s below which the device is considered not moving.
+     */
+    static final float STATIONARY_SPEED = 0.5f;
+
+    /**
+     * Time in millis after which not moving device is considered stationary.
+     */
+    static final long STATIONARY_DELAY = 2 * 60 * 1000;
+
+    /**
+     * Location parameters used while stationary.
+     */
+    static final long STATIONARY_INTERVAL = 2 * 60 * 1000;
+    static final int STATIONARY_SMALLEST_DISPLACEMENT = 25;
+
+    /**
+     * Distance in meters travelled between locations while moving, determines the interval.
+     */
+    static final float MOVING_DISTANCE = 50;
+
+    /**
+     * Relative change of the interval which causes re-requesting location updates.
+     */
+    private static final float INTERVAL_CHANGE_THRESHOLD = 0.25f;
+
+    /**
+     * Default parameters, used for listeners without demands.
+     */
+    private final long mInterval;
+    private final long mFastInterval;
+    private final int mPriority;
+    private final int mSmallestDisplacement;
+
+    private final Map<Object, LocationDemand> mDemands = new WeakHashMap<Object, LocationDemand>();
+
+    private volatile boolean mIsAdaptive = false;
+    private float mSpeed = -1;
+    private long mNotMovingSince = 0;
+
+    /**
+     * Parameters of the current location request.
+     */
+    private long mRequestInterval;
+    private long mRequestFastInterval;
+    private int mRequestPriority;
+    private int mRequestSmallestDisplacement;
+    private long mMaxWaitTime;
+
+    /**
+     * Class constructor
+     *
+     * @param interval Default interval in millis.
+     * @param fastInterval Default fastest interval in millis.
+     * @param priority Default priority of location.
+     * @param smallestDisplacement Default smallest displacement in meters.
+     */
+    LocationScheduler(long interval, long fastInterval, int priority, int smallestDisplacement) {
+        mInterval = interval;
+        mFastInterval = fastInterval;
+        mPriority = priority;
+        mSmallestDisplacement = smallestDisplacement;
+    }
+
+    /**
+     * Sets demand of the listener, replacing its previous demand.
+     *
+     * @param listener Listener object, kept as a weak reference.
+     * @param interval Demanded interval in millis.
+     * @param priority Demanded priority of location.
+     */
+    synchronized void setDemand(Object listener, long interval, int priority) {
+        mDemands.put(listener, new LocationDemand(interval, priority));
+    }
+
+    synchronized void removeDemand(Object listener) {
+        mDemands.remove(listener);
+    }
+
+    /**
+     * Enables adapting default parameters to the movement, resetting measured movement.
+     *
+     * @param enabled True to enable adaptive scheduling, false otherwise.
+     */
+    synchronized void setAdaptive(boolean enabled) {
+        mIsAdaptive = enabled;
+        mSpeed = -1;
+        mNotMovingSince = 0;
+    }
+
+    boolean isAdaptive() {
+        return mIsAdaptive;
+    }
+
+    /**
+     * Updates measured speed and stationary state.
+     *
+     * @param speed Speed in m/s.
+     * @param now Current elapsed realtime.
+     */
+    synchronized void setSpeed(float speed, long now) {
+        mSpeed = speed;
+        if (speed >= STATIONARY_SPEED) {
+            mNotMovingSince = 0;
+        } else if (mNotMovingSince == 0) {
+            mNotMovingSince = now;
+        }
+    }
+
+    /**
+     * Computes parameters of the location request.
+     *
+     * @param listenersCount Number of registered listeners, listeners without demand use default parameters.
+     * @param maxWaitTime Maximal time in millis locations may be held by the provider.
+     * @param now Current elapsed realtime.
+     * @return True if parameters changed enough to re-request location updates, false otherwise.
+     */
+    synchronized boolean update(int listenersCount, long maxWaitTime, long now) {
+        long demandInterval = Long.MAX_VALUE;
+        int demandPriority = Integer.MAX_VALUE;
+        for (LocationDemand demand : mDemands.values()) {
+            demandInterval = Math.min(demandInterval, demand.interval);
+            demandPriority = Math.min(demandPriority, demand.priority);
+        }
+        boolean hasDefaultListeners = (listenersCount > mDemands.size()) || mDemands.isEmpty();
+
+        long interval = demandInterval;
+        int priority = demandPriority;
+        int smallestDisplacement = mSmallestDisplacement;
+        if (hasDefaultListeners) {
+            long defaultInterval = mInterval;
+            int defaultPriority = mPriority;
+            if (mIsAdaptive && (mSpeed >= 0)) {
+                if ((mNotMovingSince != 0) && (now - mNotMovingSince >= STATIONARY_DELAY)) {
+                    defaultInterval = Math.max(defaultInterval, STATIONARY_INTERVAL);
+                    defaultPriority = Math.max(defaultPriority, LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY);
+                    if (demandInterval == Long.MAX_VALUE) {
+                        //Displacement filter would suppress locations demanded by listeners
+                        smallestDisplacement = Math.max(smallestDisplacement, STATIONARY_SMALLEST_DISPLACEMENT);
+                    }
+                } else if (mSpeed > 0) {
+                    long movingInterval = Math.min((long) (MOVING_DISTANCE * ONE_SECOND / mSpeed), STATIONARY_INTERVAL);
+                    defaultInterval = Math.max(defaultInterval, movingInterval);
+                }
+            }
+            interval = Math.min(interval, defaultInterval);
+            priority = Math.min(priority, defaultPriority);
+        }
+        long fastInterval = Math.min(interval, Math.max(mFastInterval, interval / 3));
+
+        boolean isChanged = (priority != mRequestPriority)
+                || (smallestDisplacement != mRequestSmallestDisplacement)
+                || (maxWaitTime != mMaxWaitTime)
+                || (Math.abs(interval - mRequestInterval) > mRequestInterval * INTERVAL_CHANGE_THRESHOLD);
+        if (isChanged) {
+            mRequestInterval = interval;
+            mRequestFastInterval = fastInterval;
+            mRequestPriority = priority;
+            mRequestSmallestDisplacement = smallestDisplacement;
+            mMaxWaitTime = maxWaitTime;
+        }
+        return isChanged;
+    }
+
+    synchronized long getInterval() {
+        return mRequestInterval;
+    }
+
+    synchronized long getFastInterval() {
+        return mRequestFastInterval;
+    }
+
+    synchronized int getPriority() {
+        return mRequestPriority;
+    }
+
+    synchronized int getSmallestDisplacement() {
+        return mRequestSmallestDisplacement;
+    }
+
+    synchronized long getMaxWaitTime() {
+        return mMaxWaitTime;
+    }
+
+    /**
+     * Location requirements of a listener.
+     */
+    private static final class LocationDemand {
+        private final long interval;
+        private final int priority;
+
+        private LocationDemand(long interval, int priority) {
+            this.interval = interval;
+            this.priority = priority;
+        }
+    }
+}
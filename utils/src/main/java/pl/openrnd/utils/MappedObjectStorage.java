@@ -0,0 +1,1018 @@
+/******************************************************************************
+ *
+ *  2015 (C) Copyright Open-RnD Sp. z o.o.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package pl.openrnd.utils;
+
+import android.content.Context;
+import android.os.FileObserver;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * ObjectStorage keeping serialized objects in append-only, memory-mapped log file.
+ *
+ * Every write appends a record with the key and serialized object at the end of the log, so it
+ * costs only the size of the written object. Offsets of the latest records are kept in memory.
+ * Reads deserialize objects directly from the mapped file without copying.
+ * Log is compacted when obsolete records take more space than the live ones.
+ * Every record has a CRC32 checksum, log is truncated at the first malformed record,
+ * e.g. written partially before a crash.
+ *
+ * Mapped pages are written to the file by the system even if the process is killed,
+ * flushNow() forces them to the storage device.
+ *
+ * In multi-process mode writes are serialized between processes with a lock file and every
+ * access reads only records appended by other processes since the last access, so changes
+ * are applied per key without reloading the storage. Listeners registered with
+ * registerOnObjectChangedListener() are notified about objects changed by other processes.
+ * Only one storage object per file should be used in a process.
+ */
+public class MappedObjectStorage implements ObjectStorage {
+    private static final String TAG = MappedObjectStorage.class.getSimpleName();
+
+    private static final int MAGIC = 0x4F524E44;
+    private static final int VERSION = 2;
+
+    /**
+     * First version with checksums of records, older files are converted when opened.
+     */
+    private static final int VERSION_CHECKSUM = 2;
+
+    private static final int HEADER_MAGIC_OFFSET = 0;
+    private static final int HEADER_VERSION_OFFSET = 4;
+    private static final int HEADER_END_OFFSET = 8;
+    private static final int HEADER_GENERATION_OFFSET = 16;
+    private static final int HEADER_STATE_OFFSET = 24;
+    private static final int HEADER_COMPACTED_END_OFFSET = 28;
+    private static final int HEADER_SIZE = 32;
+
+    /**
+     * State set in the header of a log file replaced by its compacted version.
+     */
+    private static final int STATE_REPLACED = 1;
+
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+    private static final int COMPACTION_THRESHOLD = 64 * 1024;
+
+    private static final int REMOVED = -1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mFile;
+    private final ObjectSerializer mSerializer;
+
+    private final Map<String, Slot> mIndex = new HashMap<String, Slot>();
+    private final WriteBuffer mWriteBuffer = new WriteBuffer();
+
+    private RandomAccessFile mRandomAccessFile;
+    private FileChannel mChannel;
+    private MappedByteBuffer mBuffer;
+    private int mVersion;
+    private int mEnd;
+    private long mGeneration;
+    private int mLiveBytes;
+    private int mMalformedPosition = -1;
+
+    private final CRC32 mChecksum = new CRC32();
+    private final byte[] mChecksumBuffer = new byte[8 * 1024];
+
+    private final boolean mIsMultiProcess;
+    private RandomAccessFile mLockFile;
+    private FileChannel mLockChannel;
+    private final ByteBuffer mSignalBuffer = ByteBuffer.allocate(8);
+    private final List<String> mChangedNames = new ArrayList<String>();
+    private final ObjectListenerHandler<OnObjectChangedListener> mListenerHandler = new ObjectListenerHandler<OnObjectChangedListener>();
+    private FileObserver mFileObserver;
+
+    /**
+     * Interface definition for a callback invoked when an object is changed by other process.
+     */
+    public interface OnObjectChangedListener {
+
+        /**
+         * Called when object was stored or removed by other process.
+         *
+         * Method is called on a thread accessing the storage or on FileObserver's thread.
+         *
+         * @param name Key name of the changed object.
+         */
+        void onObjectChanged(String name);
+    }
+
+    /**
+     * Class constructor. Objects are stored with standard Java serialization.
+     *
+     * @param name Storage name, log file is created in application's files directory.
+     * @param context Current context.
+     */
+    public MappedObjectStorage(String name, Context context) {
+        this(new File(context.getApplicationContext().getFilesDir(), name + ".log"), new JavaObjectSerializer());
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param file Log file.
+     * @param serializer ObjectSerializer object defining binary format of stored objects.
+     */
+    public MappedObjectStorage(File file, ObjectSerializer serializer) {
+        this(file, serializer, false);
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param file Log file.
+     * @param serializer ObjectSerializer object defining binary format of stored objects.
+     * @param isMultiProcess True if the file is used by more processes.
+     */
+    public MappedObjectStorage(File file, ObjectSerializer serializer, boolean isMultiProcess) {
+        mFile = file;
+        mSerializer = serializer;
+        mIsMultiProcess = isMultiProcess;
+
+        FileLock lock = null;
+        try {
+            if (isMultiProcess) {
+                File lockFile = new File(file.getPath() + ".lock");
+                mLockFile = new RandomAccessFile(lockFile, "rw");
+                mLockChannel = mLockFile.getChannel();
+                mFileObserver = new FileObserver(lockFile.getPath(), FileObserver.MODIFY) {
+                    @Override
+                    public void onEvent(int event, String path) {
+                        refresh();
+                    }
+                };
+            }
+
+            lock = lockFile(false);
+            open();
+            truncateMalformed();
+            if ((mVersion < VERSION) && !compactLocked()) {
+                throw new IOException(String.format("Cannot convert file[%s]", mFile));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, String.format("MappedObjectStorage(): file[%s]", file), e);
+
+            throw new IllegalStateException(e);
+        } finally {
+            releaseFile(lock);
+        }
+    }
+
+    @Override
+    public Object getObject(String name) {
+        Object result = null;
+
+        if (name != null) {
+            ByteBuffer value = null;
+            synchronized (this) {
+                syncForRead();
+                Slot slot = mIndex.get(name);
+                if (slot != null) {
+                    //Records are never modified, so the slice may be read without the lock
+                    value = mBuffer.duplicate();
+                    value.limit(slot.offset + slot.length);
+                    value.position(slot.offset);
+                }
+            }
+            dispatchChanges();
+
+            if (value != null) {
+                try {
+                    result = mSerializer.deserialize(new ByteBufferInputStream(value));
+                } catch (Exception e) {
+                    Log.e(TAG, String.format("getObject(): EXC[%s]", e.getMessage()));
+                    e.printStackTrace();
+
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    @Override
+    public boolean putObject(String name, Object object) {
+        boolean result = false;
+
+        if (name != null) {
+            if (object == null) {
+                result = removeObject(name);
+            } else {
+                synchronized (this) {
+                    FileLock lock = null;
+                    try {
+                        //Object is serialized before other processes are locked out
+                        mWriteBuffer.reset();
+                        ObjectSerializerUtils.serialize(object, mSerializer, mWriteBuffer);
+                        lock = beginWrite();
+                        append(name, mWriteBuffer);
+                        compactIfNeeded();
+                        result = true;
+                    } catch (IOException e) {
+                        Log.e(TAG, String.format("putObject(): EXC[%s]", e.getMessage()));
+                        e.printStackTrace();
+                    } finally {
+                        endWrite(lock);
+                    }
+                }
+                dispatchChanges();
+            }
+        }
+
+        return result;
+    }
+
+    @Override
+    public boolean removeObject(String name) {
+        boolean result = false;
+
+        if (name != null) {
+            synchronized (this) {
+                FileLock lock = null;
+                try {
+                    lock = beginWrite();
+                    if (mIndex.containsKey(name)) {
+                        append(name, null);
+                        compactIfNeeded();
+                    }
+                    result = true;
+                } catch (IOException e) {
+                    Log.e(TAG, String.format("removeObject(): EXC[%s]", e.getMessage()));
+                } finally {
+                    endWrite(lock);
+                }
+            }
+            dispatchChanges();
+        }
+
+        return result;
+    }
+
+    @Override
+    public Map<String, Object> getObjects(Collection<String> names) {
+        Map<String, ByteBuffer> values = new LinkedHashMap<String, ByteBuffer>();
+        synchronized (this) {
+            syncForRead();
+            for (String name : names) {
+                if (name == null) {
+                    continue;
+                }
+                Slot slot = mIndex.get(name);
+                ByteBuffer value = null;
+                if (slot != null) {
+                    value = mBuffer.duplicate();
+                    value.limit(slot.offset + slot.length);
+                    value.position(slot.offset);
+                }
+                values.put(name, value);
+            }
+        }
+        dispatchChanges();
+
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String, ByteBuffer> entry : values.entrySet()) {
+            Object object = null;
+            if (entry.getValue() != null) {
+                try {
+                    object = mSerializer.deserialize(new ByteBufferInputStream(entry.getValue()));
+                } catch (Exception e) {
+                    Log.e(TAG, String.format("getObjects(): name[%s], EXC[%s]", entry.getKey(), e.getMessage()));
+                    e.printStackTrace();
+
+                    throw new IllegalStateException(e);
+                }
+            }
+            result.put(entry.getKey(), object);
+        }
+        return result;
+    }
+
+    /**
+     * Stores objects as one transaction. Records of all objects become visible at once.
+     *
+     * @param objects Map of key names and objects to be stored. Items with null objects will be removed.
+     * @return True if succeed, false otherwise.
+     */
+    @Override
+    public boolean putObjects(Map<String, ?> objects) {
+        boolean result = false;
+
+        List<String> names = new ArrayList<String>(objects.size());
+        List<WriteBuffer> values = new ArrayList<WriteBuffer>(objects.size());
+        try {
+            //Objects are serialized before the lock is taken
+            for (Map.Entry<String, ?> entry : objects.entrySet()) {
+                if (entry.getKey() == null) {
+                    continue;
+                }
+                WriteBuffer value = null;
+                if (entry.getValue() != null) {
+                    value = new WriteBuffer();
+                    ObjectSerializerUtils.serialize(entry.getValue(), mSerializer, value);
+                }
+                names.add(entry.getKey());
+                values.add(value);
+            }
+
+            synchronized (this) {
+                FileLock lock = null;
+                try {
+                    lock = beginWrite();
+                    append(names, values);
+                    compactIfNeeded();
+                } finally {
+                    endWrite(lock);
+                }
+            }
+            result = true;
+        } catch (IOException e) {
+            Log.e(TAG, String.format("putObjects(): EXC[%s]", e.getMessage()));
+            e.printStackTrace();
+        }
+        dispatchChanges();
+
+        return result;
+    }
+
+    /**
+     * Removes objects as one transaction.
+     *
+     * @param names Key names of objects to removed.
+     * @return True if objects were removed, false otherwise.
+     */
+    @Override
+    public boolean removeObjects(Collection<String> names) {
+        boolean result = false;
+
+        synchronized (this) {
+            FileLock lock = null;
+            try {
+                lock = beginWrite();
+
+                List<String> removedNames = new ArrayList<String>(names.size());
+                List<WriteBuffer> values = new ArrayList<WriteBuffer>(names.size());
+                for (String name : names) {
+                    if ((name != null) && mIndex.containsKey(name)) {
+                        removedNames.add(name);
+                        values.add(null);
+                    }
+                }
+
+                append(removedNames, values);
+                compactIfNeeded();
+                result = true;
+            } catch (IOException e) {
+                Log.e(TAG, String.format("removeObjects(): EXC[%s]", e.getMessage()));
+            } finally {
+                endWrite(lock);
+            }
+        }
+        dispatchChanges();
+
+        return result;
+    }
+
+    @Override
+    public synchronized boolean flushNow() {
+        mBuffer.force();
+        return true;
+    }
+
+    /**
+     * Rewrites log file leaving only the latest records.
+     *
+     * Called automatically when obsolete records take more space than the live ones.
+     *
+     * @return True if succeed, false otherwise.
+     */
+    public synchronized boolean compact() {
+        FileLock lock = null;
+        try {
+            lock = beginWrite();
+            return compactLocked();
+        } catch (IOException e) {
+            Log.e(TAG, String.format("compact(): EXC[%s]", e.getMessage()));
+            return false;
+        } finally {
+            endWrite(lock);
+        }
+    }
+
+    private boolean compactLocked() {
+        try {
+            File tmpFile = new File(mFile.getPath() + ".tmp");
+            RandomAccessFile tmp = new RandomAccessFile(tmpFile, "rw");
+            try {
+                tmp.setLength(0);
+                FileChannel tmpChannel = tmp.getChannel();
+
+                long position = HEADER_SIZE;
+                ByteBuffer checksum = ByteBuffer.allocate(4);
+                for (Slot slot : mIndex.values()) {
+                    //Records of older versions are written with checksums
+                    int headerLength = slot.offset - slot.recordOffset - checksumLength();
+                    checksum.clear();
+                    checksum.putInt(0, checksum(slot.recordOffset, headerLength, slot.offset, slot.length));
+
+                    ByteBuffer record = mBuffer.duplicate();
+                    record.limit(slot.recordOffset + headerLength);
+                    record.position(slot.recordOffset);
+                    position = write(tmpChannel, record, position);
+                    position = write(tmpChannel, checksum, position);
+                    record.limit(slot.offset + slot.length);
+                    record.position(slot.offset);
+                    position = write(tmpChannel, record, position);
+                }
+
+                //Records of older versions have different length, so the header is written last
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(HEADER_MAGIC_OFFSET, MAGIC);
+                header.putInt(HEADER_VERSION_OFFSET, VERSION);
+                header.putLong(HEADER_END_OFFSET, position);
+                header.putLong(HEADER_GENERATION_OFFSET, mBuffer.getLong(HEADER_GENERATION_OFFSET) + 1);
+                header.putInt(HEADER_COMPACTED_END_OFFSET, (int) position);
+                write(tmpChannel, header, 0);
+                tmpChannel.force(true);
+            } finally {
+                tmp.close();
+            }
+
+            if (!tmpFile.renameTo(mFile)) {
+                throw new IOException(String.format("Cannot rename file[%s]", tmpFile));
+            }
+            //Other processes still using the old file reopen it
+            mBuffer.putInt(HEADER_STATE_OFFSET, STATE_REPLACED);
+            closeFile();
+            open();
+
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, String.format("compact(): EXC[%s]", e.getMessage()));
+            e.printStackTrace();
+
+            if (mChannel == null) {
+                try {
+                    open();
+                } catch (IOException exc) {
+                    throw new IllegalStateException(exc);
+                }
+            }
+            return false;
+        }
+    }
+
+    private static long write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        return position;
+    }
+
+    /**
+     * Reads changes made by other processes and notifies registered listeners.
+     *
+     * Called automatically with every access and, when listeners are registered,
+     * when other process writes to the storage.
+     */
+    public void refresh() {
+        synchronized (this) {
+            if (mBuffer == null) {
+                return;
+            }
+            syncForRead();
+        }
+        dispatchChanges();
+    }
+
+    /**
+     * Registers listener notified about objects changed by other processes.
+     *
+     * Listeners are notified only in multi-process mode.
+     *
+     * @param listener OnObjectChangedListener object.
+     */
+    public void registerOnObjectChangedListener(OnObjectChangedListener listener) {
+        if ((mListenerHandler.registerObjectStrongListener(listener) == 1) && (mFileObserver != null)) {
+            mFileObserver.startWatching();
+        }
+    }
+
+    /**
+     * Un-registers listener notified about objects changed by other processes.
+     *
+     * @param listener OnObjectChangedListener object.
+     */
+    public void unregisterOnObjectChangedListener(OnObjectChangedListener listener) {
+        if ((mListenerHandler.unregisterObjectStrongListener(listener) == 0) && (mFileObserver != null)) {
+            mFileObserver.stopWatching();
+        }
+    }
+
+    /**
+     * Closes the log file. Storage must not be used afterwards.
+     */
+    public synchronized void close() {
+        if (mFileObserver != null) {
+            mFileObserver.stopWatching();
+        }
+
+        closeFile();
+
+        try {
+            if (mLockFile != null) {
+                mLockFile.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, String.format("close(): EXC[%s]", e.getMessage()));
+        }
+        mLockFile = null;
+        mLockChannel = null;
+    }
+
+    private void closeFile() {
+        try {
+            if (mRandomAccessFile != null) {
+                mRandomAccessFile.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, String.format("close(): EXC[%s]", e.getMessage()));
+        }
+
+        mRandomAccessFile = null;
+        mChannel = null;
+        mBuffer = null;
+        mIndex.clear();
+    }
+
+    private void open() throws IOException {
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        mChannel = mRandomAccessFile.getChannel();
+
+        long size = mChannel.size();
+        if (size < HEADER_SIZE) {
+            map(INITIAL_CAPACITY);
+            mBuffer.putInt(HEADER_MAGIC_OFFSET, MAGIC);
+            mBuffer.putInt(HEADER_VERSION_OFFSET, VERSION);
+            mBuffer.putLong(HEADER_GENERATION_OFFSET, 0);
+            mGeneration = 0;
+            mVersion = VERSION;
+            setEnd(HEADER_SIZE);
+        } else {
+            map(size);
+            mVersion = mBuffer.getInt(HEADER_VERSION_OFFSET);
+            if ((mBuffer.getInt(HEADER_MAGIC_OFFSET) != MAGIC) || (mVersion < 1) || (mVersion > VERSION)) {
+                throw new IOException(String.format("Unsupported file[%s]", mFile));
+            }
+            mEnd = clampEnd(mBuffer.getLong(HEADER_END_OFFSET));
+            mGeneration = mBuffer.getLong(HEADER_GENERATION_OFFSET);
+        }
+
+        readIndex();
+    }
+
+    private void map(long capacity) throws IOException {
+        mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    /**
+     * Limits END read from the header to the mapped file, it may be corrupted.
+     */
+    private int clampEnd(long end) {
+        return (int) Math.max(HEADER_SIZE, Math.min(end, mBuffer.capacity()));
+    }
+
+    private void setEnd(int end) {
+        mEnd = end;
+        mBuffer.putLong(HEADER_END_OFFSET, end);
+    }
+
+    /**
+     * Scans all records building the index. Records after the first malformed one are skipped,
+     * the log is truncated by the next write.
+     */
+    private void readIndex() {
+        mIndex.clear();
+        mLiveBytes = 0;
+        mMalformedPosition = -1;
+
+        int position = indexRecords(HEADER_SIZE, mEnd, null);
+        if (position != mEnd) {
+            Log.w(TAG, String.format("readIndex(): malformed record in file[%s] at [%d]", mFile, position));
+            mMalformedPosition = position;
+        }
+    }
+
+    /**
+     * Truncates log at the first malformed record. Must be called with the exclusive file lock held,
+     * processes reading under the shared lock only skip malformed records.
+     *
+     * Generation is increased, so other processes rebuild their index instead of reading records
+     * appended after the truncation from their old END.
+     */
+    private void truncateMalformed() {
+        if (mMalformedPosition >= 0) {
+            Log.w(TAG, String.format("truncateMalformed(): truncating file[%s] at [%d]", mFile, mMalformedPosition));
+            mGeneration = mBuffer.getLong(HEADER_GENERATION_OFFSET) + 1;
+            mBuffer.putLong(HEADER_GENERATION_OFFSET, mGeneration);
+            setEnd(mMalformedPosition);
+            mMalformedPosition = -1;
+        }
+    }
+
+    /**
+     * Adds records between given positions to the index.
+     *
+     * @param position Position of the first record.
+     * @param end End of the last record.
+     * @param names List collecting key names of indexed records or null.
+     * @return Position after the last well-formed record.
+     */
+    private int indexRecords(int position, int end, List<String> names) {
+        end = Math.min(end, mBuffer.capacity());
+        int checksumLength = checksumLength();
+        while (position < end) {
+            int recordOffset = position;
+            if ((long) position + 4 > end) {
+                break;
+            }
+            int keyLength = mBuffer.getInt(position);
+            position += 4;
+            if ((keyLength < 0) || ((long) position + keyLength + 4 + checksumLength > end)) {
+                position = recordOffset;
+                break;
+            }
+            int keyOffset = position;
+            position += keyLength;
+            int valueLength = mBuffer.getInt(position);
+            position += 4;
+            int checksumOffset = position;
+            position += checksumLength;
+            if ((valueLength < REMOVED) || ((long) position + Math.max(valueLength, 0) > end)) {
+                position = recordOffset;
+                break;
+            }
+            if ((checksumLength > 0) && (mBuffer.getInt(checksumOffset)
+                    != checksum(recordOffset, checksumOffset - recordOffset, position, Math.max(valueLength, 0)))) {
+                position = recordOffset;
+                break;
+            }
+
+            byte[] key = new byte[keyLength];
+            ByteBuffer keyBuffer = mBuffer.duplicate();
+            keyBuffer.position(keyOffset);
+            keyBuffer.get(key);
+
+            String name = new String(key, UTF_8);
+            updateIndex(name, recordOffset, position, valueLength);
+            if (names != null) {
+                names.add(name);
+            }
+            position += Math.max(valueLength, 0);
+        }
+        return position;
+    }
+
+    private int checksumLength() {
+        return (mVersion >= VERSION_CHECKSUM) ? 4 : 0;
+    }
+
+    /**
+     * Computes checksum of a record from its header (key and lengths) and value in the mapped file.
+     */
+    private int checksum(int headerOffset, int headerLength, int valueOffset, int valueLength) {
+        mChecksum.reset();
+        updateChecksum(headerOffset, headerLength);
+        updateChecksum(valueOffset, valueLength);
+        return (int) mChecksum.getValue();
+    }
+
+    private void updateChecksum(int offset, int length) {
+        ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(offset);
+        while (length > 0) {
+            int count = Math.min(length, mChecksumBuffer.length);
+            buffer.get(mChecksumBuffer, 0, count);
+            mChecksum.update(mChecksumBuffer, 0, count);
+            length -= count;
+        }
+    }
+
+    /**
+     * Reads records appended by other processes. Must be called with the file lock held.
+     */
+    private void sync() throws IOException {
+        if (!mIsMultiProcess) {
+            return;
+        }
+
+        while (mBuffer.getInt(HEADER_STATE_OFFSET) == STATE_REPLACED) {
+            //Records appended before the compaction are in the old file
+            syncRecords();
+
+            closeFile();
+            open();
+            int compactedEnd = mBuffer.getInt(HEADER_COMPACTED_END_OFFSET);
+            if ((compactedEnd >= HEADER_SIZE) && (compactedEnd < mEnd)) {
+                //Records appended after the compaction
+                indexRecords(compactedEnd, mEnd, mChangedNames);
+            }
+        }
+
+        syncRecords();
+    }
+
+    private void syncRecords() throws IOException {
+        int end = (int) mBuffer.getLong(HEADER_END_OFFSET);
+        long generation = mBuffer.getLong(HEADER_GENERATION_OFFSET);
+        if ((end == mEnd) && (generation == mGeneration)) {
+            return;
+        }
+
+        if (end > mBuffer.capacity()) {
+            map(mChannel.size());
+            end = clampEnd(end);
+        }
+        //Records after the old END are valid only if the log was not truncated meanwhile
+        boolean isAppended = (end > mEnd) && (generation == mGeneration) && (mMalformedPosition < 0);
+        mGeneration = generation;
+        if (isAppended) {
+            int position = indexRecords(mEnd, end, mChangedNames);
+            if (position != end) {
+                Log.w(TAG, String.format("sync(): malformed record in file[%s] at [%d]", mFile, position));
+                mMalformedPosition = position;
+            }
+            mEnd = end;
+        } else {
+            mEnd = end;
+            readIndex();
+            mChangedNames.addAll(mIndex.keySet());
+        }
+    }
+
+    /**
+     * Reads changes of other processes if the log file header changed since the last access.
+     */
+    private void syncForRead() {
+        if (!mIsMultiProcess) {
+            return;
+        }
+        if ((mBuffer.getLong(HEADER_END_OFFSET) == mEnd) && (mBuffer.getLong(HEADER_GENERATION_OFFSET) == mGeneration)
+                && (mBuffer.getInt(HEADER_STATE_OFFSET) != STATE_REPLACED)) {
+            return;
+        }
+
+        FileLock lock = null;
+        try {
+            lock = lockFile(true);
+            sync();
+        } catch (IOException e) {
+            Log.e(TAG, String.format("syncForRead(): EXC[%s]", e.getMessage()));
+        } finally {
+            releaseFile(lock);
+        }
+    }
+
+    private FileLock beginWrite() throws IOException {
+        FileLock lock = lockFile(false);
+        try {
+            sync();
+            truncateMalformed();
+        } catch (IOException e) {
+            releaseFile(lock);
+            throw e;
+        }
+        return lock;
+    }
+
+    /**
+     * Releases the file lock and signals the write to other processes.
+     */
+    private void endWrite(FileLock lock) {
+        if (lock != null) {
+            try {
+                //Modification of the lock file is delivered to FileObservers of other processes
+                mSignalBuffer.clear();
+                mSignalBuffer.putLong(0, mEnd);
+                mLockChannel.write(mSignalBuffer, 0);
+            } catch (IOException e) {
+                Log.e(TAG, String.format("endWrite(): EXC[%s]", e.getMessage()));
+            }
+            releaseFile(lock);
+        }
+    }
+
+    private FileLock lockFile(boolean shared) throws IOException {
+        return mIsMultiProcess ? mLockChannel.lock(0, Long.MAX_VALUE, shared) : null;
+    }
+
+    private void releaseFile(FileLock lock) {
+        if (lock != null) {
+            try {
+                lock.release();
+            } catch (IOException e) {
+                Log.e(TAG, String.format("releaseFile(): EXC[%s]", e.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * Notifies listeners about objects changed by other processes. Must be called without the lock held.
+     */
+    private void dispatchChanges() {
+        if (!mIsMultiProcess) {
+            return;
+        }
+
+        String[] names;
+        synchronized (this) {
+            if (mChangedNames.isEmpty()) {
+                return;
+            }
+            names = mChangedNames.toArray(new String[mChangedNames.size()]);
+            mChangedNames.clear();
+        }
+
+        for (final String name : names) {
+            mListenerHandler.notifyObjectChange(new ObjectListenerHandler.NotificationHandler<OnObjectChangedListener>() {
+                @Override
+                public void runOnListener(OnObjectChangedListener listener) {
+                    listener.onObjectChanged(name);
+                }
+            });
+        }
+    }
+
+    private void append(String name, WriteBuffer value) throws IOException {
+        append(Collections.singletonList(name), Collections.singletonList(value));
+    }
+
+    /**
+     * Appends records of keys, null values are removals. END is updated once, after all records
+     * are written.
+     */
+    private void append(List<String> names, List<WriteBuffer> values) throws IOException {
+        int count = names.size();
+        if (count == 0) {
+            return;
+        }
+
+        byte[][] keys = new byte[count][];
+        int length = 0;
+        for (int i = 0; i < count; ++i) {
+            WriteBuffer value = values.get(i);
+            keys[i] = names.get(i).getBytes(UTF_8);
+            length += 4 + keys[i].length + 4 + 4 + ((value == null) ? 0 : value.size());
+        }
+
+        ensureCapacity(mEnd + length);
+
+        int[] valueOffsets = new int[count];
+        int[] recordOffsets = new int[count];
+        ByteBuffer record = mBuffer.duplicate();
+        record.position(mEnd);
+        for (int i = 0; i < count; ++i) {
+            WriteBuffer value = values.get(i);
+            recordOffsets[i] = record.position();
+            record.putInt(keys[i].length);
+            record.put(keys[i]);
+            record.putInt((value == null) ? REMOVED : value.size());
+            int checksumOffset = record.position();
+            record.putInt(0);
+            valueOffsets[i] = record.position();
+            if (value != null) {
+                value.writeTo(record);
+            }
+            record.putInt(checksumOffset, checksum(recordOffsets[i], checksumOffset - recordOffsets[i],
+                    valueOffsets[i], (value == null) ? 0 : value.size()));
+        }
+
+        //Records become visible only after they are completely written
+        setEnd(mEnd + length);
+        for (int i = 0; i < count; ++i) {
+            WriteBuffer value = values.get(i);
+            updateIndex(names.get(i), recordOffsets[i], valueOffsets[i], (value == null) ? REMOVED : value.size());
+        }
+    }
+
+    private void updateIndex(String name, int recordOffset, int valueOffset, int valueLength) {
+        Slot previous = mIndex.remove(name);
+        if (previous != null) {
+            mLiveBytes -= previous.offset + previous.length - previous.recordOffset;
+        }
+
+        if (valueLength != REMOVED) {
+            Slot slot = new Slot(recordOffset, valueOffset, valueLength);
+            mIndex.put(name, slot);
+            mLiveBytes += valueOffset + valueLength - recordOffset;
+        }
+    }
+
+    private void ensureCapacity(int capacity) throws IOException {
+        if (capacity > mBuffer.capacity()) {
+            long newCapacity = mBuffer.capacity();
+            while (newCapacity < capacity) {
+                newCapacity *= 2;
+            }
+            map(newCapacity);
+        }
+    }
+
+    private void compactIfNeeded() {
+        int deadBytes = mEnd - HEADER_SIZE - mLiveBytes;
+        if ((deadBytes > COMPACTION_THRESHOLD) && (deadBytes > mLiveBytes)) {
+            compactLocked();
+        }
+    }
+
+    /**
+     * Location of the latest record of a key.
+     */
+    private static class Slot {
+        private final int recordOffset;
+        private final int offset;
+        private final int length;
+
+        private Slot(int recordOffset, int offset, int length) {
+            this.recordOffset = recordOffset;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * ByteArrayOutputStream which can be written to ByteBuffer without copying its content.
+     */
+    private static class WriteBuffer extends ByteArrayOutputStream {
+
+        private void writeTo(ByteBuffer target) {
+            target.put(buf, 0, count);
+        }
+    }
+
+    /**
+     * InputStream reading directly from ByteBuffer.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? (mBuffer.get() & 0xFF) : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) {
+            if (!mBuffer.hasRemaining()) {
+                return -1;
+            }
+            count = Math.min(count, mBuffer.remaining());
+            mBuffer.get(buffer, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+    }
+}
@@ -18,52 +18,351 @@
 
 package pl.openrnd.utils;
 
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Helper class with routines handing registering for/and notifying object's changes.
  *
+ * Listeners are kept in identity hash maps and compared by reference, not with equals().
+ * Registering and un-registering a listener takes a lock only to update the maps, so it takes
+ * constant time. Notifications read an immutable snapshot of listeners sorted by priority and
+ * registration order, so they do not lock and may be executed concurrently from many threads.
+ * The first notification after registrations changed rebuilds the snapshot without the lock and
+ * publishes it atomically, so any number of registrations between notifications costs a single
+ * rebuild. Notification takes the lock only to purge a garbage collected weak listener it finds,
+ * once per such listener. Listener un-registered during a notification may still receive that
+ * notification.
+ *
+ * Weak listeners are purged with every operation as soon as they are garbage collected,
+ * see setOnEmptyListener().
+ *
+ * Listeners may be registered for a channel, e.g. id of an observed object. Notifications for
+ * a channel are delivered only to listeners of that channel. Notifications without a channel are
+ * delivered to all listeners, including listeners registered for a channel.
+ *
+ * Listeners may be registered with a dispatch target, e.g. UiHandler or ExecutorService, on which
+ * they are notified. Notifications for the same target are batched, so a burst of notifications
+ * is executed with a single Runnable posted to the target.
+ *
+ * For state-like notifications conflation mode may be enabled, see setConflationEnabled().
+ *
+ * Execution of listeners may be measured, see setMetricsEnabled() and setOnSlowNotificationListener().
+ * Measuring is disabled by default and then costs a single volatile read per notified listener.
+ *
  * @param <T> Interface with definition of object notifications.
  */
 public class ObjectListenerHandler<T> {
+    private static final String TAG = ObjectListenerHandler.class.getSimpleName();
+
+    /**
+     * Default priority of listeners.
+     */
+    public static final int PRIORITY_DEFAULT = 0;
 
-    private List<WeakReference<T>> mWeakListeners;
-    private List<T> mStrongListeners;
+    private static final Object[] EMPTY = new Object[0];
 
     /**
-     * Registers object's listener as a weak reference.
+     * Interface definition for a callback invoked when the last listener is removed.
+     */
+    public interface OnEmptyListener {
+
+        /**
+         * Called when the last listener was un-registered or garbage collected.
+         *
+         * Method is called on the thread which removed the listener.
+         */
+        void onEmpty();
+    }
+
+    /**
+     * Interface definition for a callback invoked when a listener exceeds its time budget.
      *
-     * Caller must keep strong reference of the listener as long as it is suppose to
-     * receive notifications.
+     * @param <T> Interface with definition of object notifications.
+     */
+    public interface OnSlowNotificationListener<T> {
+
+        /**
+         * Called after a single notification of the listener took longer than the budget.
+         *
+         * Method is called on the thread which notified the listener.
+         *
+         * @param listener Slow listener.
+         * @param duration Duration of the notification in nanoseconds.
+         */
+        void onSlowNotification(T listener, long duration);
+    }
+
+    private final IdentityHashMap<Object, Registration> mStrongRegistrations = new IdentityHashMap<Object, Registration>();
+    private final HashMap<WeakKey, Registration> mWeakRegistrations = new HashMap<WeakKey, Registration>();
+    private final ReferenceQueue<Object> mReferenceQueue = new ReferenceQueue<Object>();
+    private long mSequence = 0;
+
+    /**
+     * All registrations, iterated without the lock when the snapshot is rebuilt.
+     */
+    private final Set<Registration> mRegistrations = Collections.newSetFromMap(new ConcurrentHashMap<Registration, Boolean>());
+    /**
+     * Incremented after every change of registrations, with registrations lock held.
+     */
+    private volatile long mVersion = 0;
+    /**
+     * Snapshot of registrations, rebuilt by the first notification after registrations changed.
+     */
+    private final AtomicReference<Snapshot> mSnapshot = new AtomicReference<Snapshot>(new Snapshot(0, EMPTY));
+
+    private final ConcurrentHashMap<Executor, DispatchQueue> mDispatchQueues = new ConcurrentHashMap<Executor, DispatchQueue>();
+
+    private volatile boolean mIsConflationEnabled = false;
+    private volatile long mMinDispatchInterval = 0;
+    private volatile OnEmptyListener mOnEmptyListener;
+
+    /**
+     * Null if measuring of listeners is disabled.
+     */
+    private volatile Instrumentation mInstrumentation;
+
+    private static ScheduledExecutorService sTimer;
+
+    /**
+     * Enables conflation of notifications.
      *
-     * @param listener Listener object to be registered.
-     * @return Size of all registered weak listeners.
+     * In conflation mode only the newest notification is kept for a listener registered with
+     * a dispatch target, it replaces any notification not yet delivered to that listener.
+     * Listeners without dispatch target are always notified directly.
+     *
+     * @param enabled True to enable conflation, false otherwise. Default is false.
      */
-    public synchronized int registerObjectWeakListener(T listener) {
-        if (mWeakListeners == null) {
-            mWeakListeners = new ArrayList<WeakReference<T>>();
+    public void setConflationEnabled(boolean enabled) {
+        mIsConflationEnabled = enabled;
+    }
 
-            mWeakListeners.add(new WeakReference<T>(listener));
+    /**
+     * Checks if conflation of notifications is enabled.
+     *
+     * @return True if conflation is enabled, false otherwise.
+     */
+    public boolean isConflationEnabled() {
+        return mIsConflationEnabled;
+    }
+
+    /**
+     * Sets minimal interval between notifications of a listener in conflation mode.
+     *
+     * Notification coming earlier is delayed and replaced by newer notifications meanwhile.
+     *
+     * @param minInterval Interval in milliseconds, 0 for no limit. Default is 0.
+     */
+    public void setMinDispatchInterval(long minInterval) {
+        mMinDispatchInterval = Math.max(minInterval, 0);
+    }
+
+    /**
+     * Sets listener notified when the last listener is removed.
+     *
+     * It allows releasing resources used for producing notifications, e.g. when all weak listeners
+     * were garbage collected without being un-registered.
+     *
+     * @param onEmptyListener OnEmptyListener object or null.
+     */
+    public void setOnEmptyListener(OnEmptyListener onEmptyListener) {
+        mOnEmptyListener = onEmptyListener;
+    }
+
+    /**
+     * Returns number of registered weak and strong listeners.
+     *
+     * @return Number of listeners, garbage collected listeners are not counted.
+     */
+    public int getListenerCount() {
+        int result;
+        boolean isEmpty;
+        synchronized (mStrongRegistrations) {
+            isEmpty = purgeWeakRegistrations() && isEmpty();
+            result = mStrongRegistrations.size() + mWeakRegistrations.size();
+        }
+
+        if (isEmpty) {
+            notifyEmpty();
+        }
+        return result;
+    }
+
+    /**
+     * Enables collecting of listener metrics: number of notifications, cumulative and maximal
+     * duration of notifications and number of exceptions thrown by the listener.
+     *
+     * Metrics are kept as long as the listener is registered, see getMetrics().
+     *
+     * @param enabled True to enable metrics, false otherwise. Default is false.
+     */
+    public synchronized void setMetricsEnabled(boolean enabled) {
+        Instrumentation instrumentation = mInstrumentation;
+        updateInstrumentation(enabled,
+                (instrumentation == null) ? null : instrumentation.onSlowNotificationListener,
+                (instrumentation == null) ? 0 : instrumentation.budget);
+    }
+
+    /**
+     * Checks if collecting of listener metrics is enabled.
+     *
+     * @return True if metrics are enabled, false otherwise.
+     */
+    public boolean isMetricsEnabled() {
+        Instrumentation instrumentation = mInstrumentation;
+        return (instrumentation != null) && instrumentation.isMetricsEnabled;
+    }
+
+    /**
+     * Sets listener notified when a single notification of a listener exceeds the time budget.
+     *
+     * Works independently of setMetricsEnabled().
+     *
+     * @param onSlowNotificationListener OnSlowNotificationListener object or null.
+     * @param budget Time budget of a single notification in nanoseconds.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized void setOnSlowNotificationListener(OnSlowNotificationListener<? super T> onSlowNotificationListener, long budget) {
+        Instrumentation instrumentation = mInstrumentation;
+        updateInstrumentation((instrumentation != null) && instrumentation.isMetricsEnabled,
+                (OnSlowNotificationListener<Object>) onSlowNotificationListener, Math.max(budget, 0));
+    }
+
+    private void updateInstrumentation(boolean isMetricsEnabled, OnSlowNotificationListener<Object> onSlowNotificationListener, long budget) {
+        if (!isMetricsEnabled && (onSlowNotificationListener == null)) {
+            mInstrumentation = null;
         } else {
-            Iterator<WeakReference<T>> iter = mWeakListeners.iterator();
-            boolean skipAdding = false;
-            while (iter.hasNext()) {
-                T weakListener = iter.next().get();
-                if (weakListener == null) {
-                    iter.remove();
-                } else if (weakListener == listener) {
-                    skipAdding = true;
+            mInstrumentation = new Instrumentation(isMetricsEnabled, onSlowNotificationListener, budget);
+        }
+    }
+
+    /**
+     * Returns snapshot of metrics of all registered listeners.
+     *
+     * Metrics are collected only when enabled with setMetricsEnabled().
+     *
+     * @return List of ListenerMetrics objects, one for each registered listener.
+     */
+    @SuppressWarnings("unchecked")
+    public List<ListenerMetrics<T>> getMetrics() {
+        ArrayList<Registration> registrations;
+        synchronized (mStrongRegistrations) {
+            purgeWeakRegistrations();
+
+            registrations = new ArrayList<Registration>(mStrongRegistrations.size() + mWeakRegistrations.size());
+            registrations.addAll(mStrongRegistrations.values());
+            registrations.addAll(mWeakRegistrations.values());
+        }
+        Collections.sort(registrations, REGISTRATION_COMPARATOR);
+
+        ArrayList<ListenerMetrics<T>> result = new ArrayList<ListenerMetrics<T>>(registrations.size());
+        for (Registration registration : registrations) {
+            Object listener = registration.get();
+            if (listener != null) {
+                Metrics metrics = registration.metrics;
+                if (metrics == null) {
+                    result.add(new ListenerMetrics<T>((T) listener, registration.channel, registration.priority, 0, 0, 0, 0));
+                } else {
+                    result.add(new ListenerMetrics<T>((T) listener, registration.channel, registration.priority,
+                            metrics.count.get(), metrics.totalTime.get(), metrics.maxTime.get(), metrics.exceptionCount.get()));
                 }
             }
-            if (!skipAdding) {
-                mWeakListeners.add(new WeakReference<T>(listener));
+        }
+        return result;
+    }
+
+    /**
+     * Resets metrics of all registered listeners.
+     */
+    public void resetMetrics() {
+        synchronized (mStrongRegistrations) {
+            for (Registration registration : mStrongRegistrations.values()) {
+                registration.metrics = null;
+            }
+            for (Registration registration : mWeakRegistrations.values()) {
+                registration.metrics = null;
             }
         }
+    }
+
+    /**
+     * Registers object's listener as a weak reference.
+     *
+     * Caller must keep strong reference of the listener as long as it is suppose to
+     * receive notifications. Listener is notified on the thread calling notifyObjectChange().
+     *
+     * @param listener Listener object to be registered.
+     * @return Size of all registered weak listeners.
+     */
+    public int registerObjectWeakListener(T listener) {
+        return registerObjectWeakListener(listener, null, PRIORITY_DEFAULT, null);
+    }
+
+    /**
+     * Registers object's listener as a weak reference notified on provided target.
+     *
+     * @param listener Listener object to be registered.
+     * @param target Executor object on which the listener is notified, e.g. UiHandler, or null
+     *               for the thread calling notifyObjectChange().
+     * @return Size of all registered weak listeners.
+     * @see #registerObjectWeakListener(Object, Object, int, java.util.concurrent.Executor)
+     */
+    public int registerObjectWeakListener(T listener, Executor target) {
+        return registerObjectWeakListener(listener, null, PRIORITY_DEFAULT, target);
+    }
+
+    /**
+     * Registers object's listener as a weak reference.
+     *
+     * Caller must keep strong reference of the listener as long as it is suppose to
+     * receive notifications. Registering already registered listener changes its channel,
+     * priority and target.
+     *
+     * @param listener Listener object to be registered.
+     * @param channel Channel key for which the listener is notified or null for all notifications.
+     * @param priority Listener priority, listeners with higher priority are notified first.
+     * @param target Executor object on which the listener is notified, e.g. UiHandler, or null
+     *               for the thread calling notifyObjectChange().
+     * @return Size of all registered weak listeners.
+     */
+    public int registerObjectWeakListener(T listener, Object channel, int priority, Executor target) {
+        DispatchQueue queue = getDispatchQueue(target);
+        synchronized (mStrongRegistrations) {
+            purgeWeakRegistrations();
 
-        return mWeakListeners.size();
+            Registration registration = mWeakRegistrations.get(new WeakKey(listener, null));
+            if ((registration == null) || !registration.isSame(channel, priority, queue)) {
+                //Key already in the map is kept, only keys in the map are enqueued when cleared
+                WeakKey key = (registration == null) ? new WeakKey(listener, mReferenceQueue) : (WeakKey) registration.listener;
+                Registration newRegistration = new Registration(key, true, channel, priority, queue, mSequence++, registration);
+                mWeakRegistrations.put(key, newRegistration);
+                replaceRegistration(registration, newRegistration);
+            }
+            return mWeakRegistrations.size();
+        }
     }
 
     /**
@@ -72,85 +371,734 @@ public class ObjectListenerHandler<T> {
      * @param listener Listener object to be un-registered.
      * @return Size of all registered weak listeners.
      */
-    public synchronized int unregisterObjectWeakListener(T listener) {
-        if (mWeakListeners != null) {
-            Iterator<WeakReference<T>> iter = mWeakListeners.iterator();
-            while (iter.hasNext()) {
-                T weakListener = iter.next().get();
-                if ((weakListener == null) || (weakListener == listener)) {
-                    iter.remove();
-                }
+    public int unregisterObjectWeakListener(T listener) {
+        int result;
+        boolean isEmpty;
+        synchronized (mStrongRegistrations) {
+            boolean isChanged = purgeWeakRegistrations();
+            Registration registration = mWeakRegistrations.remove(new WeakKey(listener, null));
+            if (registration != null) {
+                replaceRegistration(registration, null);
+                isChanged = true;
             }
-            return mWeakListeners.size();
-        } else {
-            return 0;
+            result = mWeakRegistrations.size();
+            isEmpty = isChanged && isEmpty();
+        }
+
+        if (isEmpty) {
+            notifyEmpty();
         }
+        return result;
     }
 
     /**
      * Registers object's listener as a strong reference.
      *
+     * Listener is notified on the thread calling notifyObjectChange().
+     *
      * @param listener Listener object to be registered.
      * @return Size of all registered strong listeners.
      */
-    public synchronized int registerObjectStrongListener(T listener) {
-        if (mStrongListeners == null) {
-            mStrongListeners = new ArrayList<T>();
+    public int registerObjectStrongListener(T listener) {
+        return registerObjectStrongListener(listener, null, PRIORITY_DEFAULT, null);
+    }
 
-            mStrongListeners.add(listener);
-        } else {
-            if (!mStrongListeners.contains(listener)) {
-                mStrongListeners.add(listener);
+    /**
+     * Registers object's listener as a strong reference notified on provided target.
+     *
+     * @param listener Listener object to be registered.
+     * @param target Executor object on which the listener is notified, e.g. UiHandler, or null
+     *               for the thread calling notifyObjectChange().
+     * @return Size of all registered strong listeners.
+     * @see #registerObjectStrongListener(Object, Object, int, java.util.concurrent.Executor)
+     */
+    public int registerObjectStrongListener(T listener, Executor target) {
+        return registerObjectStrongListener(listener, null, PRIORITY_DEFAULT, target);
+    }
+
+    /**
+     * Registers object's listener as a strong reference.
+     *
+     * Registering already registered listener changes its channel, priority and target.
+     *
+     * @param listener Listener object to be registered.
+     * @param channel Channel key for which the listener is notified or null for all notifications.
+     * @param priority Listener priority, listeners with higher priority are notified first.
+     * @param target Executor object on which the listener is notified, e.g. UiHandler, or null
+     *               for the thread calling notifyObjectChange().
+     * @return Size of all registered strong listeners.
+     */
+    public int registerObjectStrongListener(T listener, Object channel, int priority, Executor target) {
+        DispatchQueue queue = getDispatchQueue(target);
+        synchronized (mStrongRegistrations) {
+            purgeWeakRegistrations();
+
+            Registration registration = mStrongRegistrations.get(listener);
+            if ((registration == null) || !registration.isSame(channel, priority, queue)) {
+                Registration newRegistration = new Registration(listener, false, channel, priority, queue, mSequence++, registration);
+                mStrongRegistrations.put(listener, newRegistration);
+                replaceRegistration(registration, newRegistration);
             }
+            return mStrongRegistrations.size();
         }
-
-        return mStrongListeners.size();
     }
 
     /**
      * Un-registers object's listener from object's strong reference listeners.
      *
+     * Listener is matched by reference, an equal but different object does not un-register it.
+     *
      * @param listener Listener object to be un-registered.
      * @return Size of all registered strong listeners.
      */
-    public synchronized int unregisterObjectStrongListener(T listener) {
-        if (mStrongListeners != null) {
-            mStrongListeners.remove(listener);
+    public int unregisterObjectStrongListener(T listener) {
+        int result;
+        boolean isEmpty;
+        synchronized (mStrongRegistrations) {
+            boolean isChanged = purgeWeakRegistrations();
+            Registration registration = mStrongRegistrations.remove(listener);
+            if (registration != null) {
+                replaceRegistration(registration, null);
+                isChanged = true;
+            }
+            result = mStrongRegistrations.size();
+            isEmpty = isChanged && isEmpty();
+        }
 
-            return mStrongListeners.size();
-        } else {
-            return 0;
+        if (isEmpty) {
+            notifyEmpty();
         }
+        return result;
     }
 
     /**
      * Notify all registered listeners with object change.
      *
      * Provided NotificationHandler object is supposed to execute required notification.
+     * Listeners without dispatch target are notified on the calling thread in order of their priorities.
+     * Other listeners are notified later on their targets.
      *
      * @param notificationHandler NotificationHandler object for executing required notification on
      *                            listener object.
      */
-    public synchronized void notifyObjectChange(NotificationHandler notificationHandler) {
-        if (mWeakListeners != null) {
-            Iterator<WeakReference<T>> iter = mWeakListeners.iterator();
-            while (iter.hasNext()) {
-                T weakListener = iter.next().get();
-                if (weakListener == null) {
-                    iter.remove();
-                } else {
-                    notificationHandler.runOnListener(weakListener);
+    public void notifyObjectChange(NotificationHandler<? super T> notificationHandler) {
+        notifyObjectChange(NOTIFICATION_HANDLER_ADAPTER, notificationHandler);
+    }
+
+    /**
+     * Notify all registered listeners with object change event.
+     *
+     * Provided EventHandler object is supposed to execute required notification with the event,
+     * so a single EventHandler object can be reused for all notifications. Notification of listeners
+     * without dispatch target does not allocate any objects.
+     *
+     * @param eventHandler EventHandler object for executing required notification on listener object.
+     * @param event Event object passed to the eventHandler.
+     * @param <E> Type of the event.
+     */
+    public <E> void notifyObjectChange(EventHandler<? super T, ? super E> eventHandler, E event) {
+        notify(getSnapshot().registrations, eventHandler, event);
+    }
+
+    /**
+     * Notify listeners registered for the channel with object change event.
+     *
+     * Listeners registered without channel are not notified.
+     *
+     * @param channel Channel key.
+     * @param eventHandler EventHandler object for executing required notification on listener object.
+     * @param event Event object passed to the eventHandler.
+     * @param <E> Type of the event.
+     */
+    public <E> void notifyObjectChange(Object channel, EventHandler<? super T, ? super E> eventHandler, E event) {
+        Snapshot snapshot = getSnapshot();
+        Object[] registrations = (channel == null) ? snapshot.registrations : snapshot.channelRegistrations.get(channel);
+        if (registrations != null) {
+            notify(registrations, eventHandler, event);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void notify(Object[] registrations, EventHandler<?, ?> eventHandler, Object event) {
+        EventHandler<Object, Object> handler = (EventHandler<Object, Object>) eventHandler;
+
+        boolean hasCleared = false;
+        for (int i = 0; i < registrations.length; ++i) {
+            Registration registration = (Registration) registrations[i];
+            Object listener = registration.get();
+            if (listener == null) {
+                hasCleared = true;
+            } else {
+                dispatch(registration, listener, handler, event);
+            }
+        }
+
+        if (hasCleared) {
+            boolean isEmpty;
+            synchronized (mStrongRegistrations) {
+                isEmpty = purgeWeakRegistrations() && isEmpty();
+            }
+            if (isEmpty) {
+                notifyEmpty();
+            }
+        }
+    }
+
+    private void dispatch(Registration registration, Object listener, EventHandler<Object, Object> eventHandler, Object event) {
+        if (registration.queue == null) {
+            invoke(registration, listener, eventHandler, event);
+        } else if (mIsConflationEnabled) {
+            //Registration is queued only once until its pending notification is delivered
+            if (registration.pendingNotification.getAndSet(new PendingNotification(eventHandler, event, null, null)) == null) {
+                registration.queue.enqueue(registration);
+            }
+        } else {
+            registration.queue.enqueue(new PendingNotification(eventHandler, event, listener, registration));
+        }
+    }
+
+    /**
+     * Runs notification on the listener, measuring it if instrumentation is enabled.
+     */
+    private void invoke(Registration registration, Object listener, EventHandler<Object, Object> eventHandler, Object event) {
+        Instrumentation instrumentation = mInstrumentation;
+        if (instrumentation == null) {
+            eventHandler.runOnListener(listener, event);
+            return;
+        }
+
+        boolean isFailed = true;
+        long startTime = nanoTime();
+        try {
+            eventHandler.runOnListener(listener, event);
+            isFailed = false;
+        } finally {
+            long duration = nanoTime() - startTime;
+            if (instrumentation.isMetricsEnabled) {
+                registration.getMetrics().add(duration, isFailed);
+            }
+            if ((instrumentation.onSlowNotificationListener != null) && (duration > instrumentation.budget)) {
+                instrumentation.onSlowNotificationListener.onSlowNotification(listener, duration);
+            }
+        }
+    }
+
+    /**
+     * Replaces registration in the set of all registrations and invalidates the snapshot.
+     * Must be called with registrations lock held.
+     *
+     * @param removed Removed registration or null.
+     * @param added Added registration or null.
+     */
+    private void replaceRegistration(Registration removed, Registration added) {
+        if (removed != null) {
+            //Set before the replacing registration is added, so rebuild never takes both
+            removed.isRemoved = true;
+            mRegistrations.remove(removed);
+        }
+        if (added != null) {
+            mRegistrations.add(added);
+        }
+        mVersion = mVersion + 1;
+    }
+
+    /**
+     * Gets snapshot of current registrations, rebuilding it if registrations changed.
+     *
+     * Snapshot is rebuilt without the lock, concurrent rebuilds publish only one result.
+     */
+    private Snapshot getSnapshot() {
+        Snapshot snapshot = mSnapshot.get();
+        //Read before registrations are copied, so the copy has at least all changes of this version
+        long version = mVersion;
+        if (snapshot.version == version) {
+            return snapshot;
+        }
+
+        Snapshot result = new Snapshot(version, mRegistrations.toArray());
+        mSnapshot.compareAndSet(snapshot, result);
+        return result;
+    }
+
+    /**
+     * Removes registrations of garbage collected weak listeners enqueued in the reference queue.
+     * Must be called with registrations lock held.
+     *
+     * @return True if any registration was removed, false otherwise.
+     */
+    private boolean purgeWeakRegistrations() {
+        boolean isChanged = false;
+        Reference<?> reference;
+        while ((reference = mReferenceQueue.poll()) != null) {
+            Registration registration = mWeakRegistrations.remove(reference);
+            if (registration != null) {
+                replaceRegistration(registration, null);
+                isChanged = true;
+            }
+        }
+        return isChanged;
+    }
+
+    /**
+     * Must be called with registrations lock held.
+     */
+    private boolean isEmpty() {
+        return mStrongRegistrations.isEmpty() && mWeakRegistrations.isEmpty();
+    }
+
+    private void notifyEmpty() {
+        OnEmptyListener onEmptyListener = mOnEmptyListener;
+        if (onEmptyListener != null) {
+            onEmptyListener.onEmpty();
+        }
+    }
+
+    private DispatchQueue getDispatchQueue(Executor target) {
+        if (target == null) {
+            return null;
+        }
+
+        DispatchQueue queue = mDispatchQueues.get(target);
+        if (queue == null) {
+            DispatchQueue newQueue = new DispatchQueue(this, target);
+            queue = mDispatchQueues.putIfAbsent(target, newQueue);
+            if (queue == null) {
+                queue = newQueue;
+            }
+        }
+        return queue;
+    }
+
+    private static final Comparator<Object> REGISTRATION_COMPARATOR = new Comparator<Object>() {
+        @Override
+        public int compare(Object lhs, Object rhs) {
+            Registration left = (Registration) lhs;
+            Registration right = (Registration) rhs;
+            if (left.priority != right.priority) {
+                return (left.priority > right.priority) ? -1 : 1;
+            }
+            return (left.sequence < right.sequence) ? -1 : ((left.sequence == right.sequence) ? 0 : 1);
+        }
+    };
+
+    /**
+     * Weak reference of a listener, equal to other references of the same listener.
+     */
+    private static final class WeakKey extends WeakReference<Object> {
+        private final int mHashCode;
+
+        private WeakKey(Object listener, ReferenceQueue<Object> referenceQueue) {
+            super(listener, referenceQueue);
+            mHashCode = System.identityHashCode(listener);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (object == this) {
+                return true;
+            }
+            if (!(object instanceof WeakKey)) {
+                return false;
+            }
+            Object listener = get();
+            return (listener != null) && (listener == ((WeakKey) object).get());
+        }
+    }
+
+    /**
+     * Registered listener with its channel, priority and dispatch target.
+     */
+    private static final class Registration {
+        /**
+         * Listener object or WeakKey of weak listener.
+         */
+        private final Object listener;
+        private final boolean isWeak;
+        private final Object channel;
+        private final int priority;
+        private final DispatchQueue queue;
+        private final long sequence;
+
+        /**
+         * Set when the registration is un-registered or replaced.
+         */
+        private volatile boolean isRemoved;
+
+        /**
+         * The newest not delivered notification in conflation mode.
+         */
+        private final AtomicReference<PendingNotification> pendingNotification = new AtomicReference<PendingNotification>();
+        private volatile long lastDispatchTime;
+
+        /**
+         * Created with the first measured notification.
+         */
+        private volatile Metrics metrics;
+
+        /**
+         * @param previous Replaced registration of the same listener, its metrics are kept.
+         */
+        private Registration(Object listener, boolean isWeak, Object channel, int priority, DispatchQueue queue, long sequence, Registration previous) {
+            this.listener = listener;
+            this.isWeak = isWeak;
+            this.channel = channel;
+            this.priority = priority;
+            this.queue = queue;
+            this.sequence = sequence;
+            this.metrics = (previous == null) ? null : previous.metrics;
+        }
+
+        private Object get() {
+            return isWeak ? ((WeakKey) listener).get() : listener;
+        }
+
+        private boolean isSame(Object channel, int priority, DispatchQueue queue) {
+            return ((this.channel == null) ? (channel == null) : this.channel.equals(channel))
+                    && (this.priority == priority) && (this.queue == queue);
+        }
+
+        private Metrics getMetrics() {
+            Metrics result = metrics;
+            if (result == null) {
+                synchronized (this) {
+                    result = metrics;
+                    if (result == null) {
+                        result = new Metrics();
+                        metrics = result;
+                    }
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Delivers pending notification or delays it if the listener was notified recently.
+         */
+        private void dispatchPending(ObjectListenerHandler<?> owner) {
+            long minInterval = owner.mMinDispatchInterval;
+            long now = owner.uptimeMillis();
+            long delay = lastDispatchTime + minInterval - now;
+            if ((minInterval > 0) && (lastDispatchTime != 0) && (delay > 0)) {
+                queue.enqueueDelayed(this, delay);
+                return;
+            }
+
+            PendingNotification notification = pendingNotification.getAndSet(null);
+            Object currentListener = get();
+            if ((notification != null) && (currentListener != null)) {
+                lastDispatchTime = now;
+                owner.invoke(this, currentListener, notification.eventHandler, notification.event);
+            }
+        }
+    }
+
+    /**
+     * Queue of notifications waiting for execution on a dispatch target.
+     *
+     * Only one Runnable is posted to the target until all queued notifications are executed.
+     */
+    private static final class DispatchQueue implements Runnable {
+        private final ObjectListenerHandler<?> mOwner;
+        private final Executor mTarget;
+        /**
+         * PendingNotification objects or Registration objects with pending notification in conflation mode.
+         */
+        private final ConcurrentLinkedQueue<Object> mNotifications = new ConcurrentLinkedQueue<Object>();
+        private final AtomicBoolean mIsScheduled = new AtomicBoolean();
+
+        private DispatchQueue(ObjectListenerHandler<?> owner, Executor target) {
+            mOwner = owner;
+            mTarget = target;
+        }
+
+        private void enqueue(Object notification) {
+            mNotifications.add(notification);
+
+            if (mIsScheduled.compareAndSet(false, true)) {
+                mTarget.execute(this);
+            }
+        }
+
+        private void enqueueDelayed(final Registration registration, long delay) {
+            mOwner.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    enqueue(registration);
+                }
+            }, delay);
+        }
+
+        @Override
+        public void run() {
+            //Notifications enqueued from now on schedule next run
+            mIsScheduled.set(false);
+
+            Object notification;
+            while ((notification = mNotifications.poll()) != null) {
+                try {
+                    if (notification instanceof Registration) {
+                        ((Registration) notification).dispatchPending(mOwner);
+                    } else {
+                        ((PendingNotification) notification).run(mOwner);
+                    }
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "notification error", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns time used for measuring listeners, overridden in tests.
+     *
+     * @return Current value of the high-resolution time source in nanoseconds.
+     */
+    long nanoTime() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Returns time used for minimal dispatch interval, overridden in tests.
+     *
+     * @return Milliseconds since boot, not counting time spent in deep sleep.
+     */
+    long uptimeMillis() {
+        return SystemClock.uptimeMillis();
+    }
+
+    /**
+     * Runs delayed dispatch of a conflated notification, overridden in tests.
+     *
+     * @param runnable Runnable object to be run.
+     * @param delay Delay in milliseconds.
+     */
+    void schedule(Runnable runnable, long delay) {
+        getTimer().schedule(runnable, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private static synchronized ScheduledExecutorService getTimer() {
+        if (sTimer == null) {
+            sTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, String.format("%s-timer", TAG));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sTimer;
+    }
+
+    /**
+     * Immutable registrations sorted by priority and registration order.
+     */
+    private static final class Snapshot {
+        private final long version;
+        private final Object[] registrations;
+        /**
+         * Sorted registrations of every channel.
+         */
+        private final Map<Object, Object[]> channelRegistrations;
+
+        /**
+         * @param registrations Copy of registrations, it is sorted in place.
+         */
+        private Snapshot(long version, Object[] registrations) {
+            //Registration replaced while being copied may be copied with the replacing one
+            int count = 0;
+            for (Object registration : registrations) {
+                if (!((Registration) registration).isRemoved) {
+                    registrations[count++] = registration;
                 }
             }
+            Arrays.sort(registrations, 0, count, REGISTRATION_COMPARATOR);
+
+            this.version = version;
+            this.registrations = (count == 0) ? EMPTY : Arrays.copyOf(registrations, count);
+            this.channelRegistrations = groupByChannel(this.registrations);
+        }
+
+        private static Map<Object, Object[]> groupByChannel(Object[] registrations) {
+            HashMap<Object, List<Object>> channels = new HashMap<Object, List<Object>>();
+            for (Object item : registrations) {
+                Object channel = ((Registration) item).channel;
+                if (channel != null) {
+                    List<Object> channelRegistrations = channels.get(channel);
+                    if (channelRegistrations == null) {
+                        channelRegistrations = new ArrayList<Object>();
+                        channels.put(channel, channelRegistrations);
+                    }
+                    channelRegistrations.add(item);
+                }
+            }
+            if (channels.isEmpty()) {
+                return Collections.emptyMap();
+            }
+
+            HashMap<Object, Object[]> result = new HashMap<Object, Object[]>(channels.size() * 2);
+            for (Map.Entry<Object, List<Object>> entry : channels.entrySet()) {
+                result.put(entry.getKey(), entry.getValue().toArray());
+            }
+            return result;
+        }
+    }
+
+    private static final class PendingNotification {
+        private final EventHandler<Object, Object> eventHandler;
+        private final Object event;
+        private final Object listener;
+        private final Registration registration;
+
+        private PendingNotification(EventHandler<Object, Object> eventHandler, Object event, Object listener, Registration registration) {
+            this.eventHandler = eventHandler;
+            this.event = event;
+            this.listener = listener;
+            this.registration = registration;
+        }
+
+        private void run(ObjectListenerHandler<?> owner) {
+            owner.invoke(registration, listener, eventHandler, event);
+        }
+    }
+
+    /**
+     * Immutable configuration of listener measuring.
+     */
+    private static final class Instrumentation {
+        private final boolean isMetricsEnabled;
+        private final OnSlowNotificationListener<Object> onSlowNotificationListener;
+        private final long budget;
+
+        private Instrumentation(boolean isMetricsEnabled, OnSlowNotificationListener<Object> onSlowNotificationListener, long budget) {
+            this.isMetricsEnabled = isMetricsEnabled;
+            this.onSlowNotificationListener = onSlowNotificationListener;
+            this.budget = budget;
         }
+    }
+
+    /**
+     * Metrics of a registered listener, updated concurrently by notifying threads.
+     */
+    private static final class Metrics {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalTime = new AtomicLong();
+        private final AtomicLong maxTime = new AtomicLong();
+        private final AtomicLong exceptionCount = new AtomicLong();
+
+        private void add(long duration, boolean isFailed) {
+            count.incrementAndGet();
+            totalTime.addAndGet(duration);
+            if (isFailed) {
+                exceptionCount.incrementAndGet();
+            }
 
-        if (mStrongListeners != null) {
-            for (T listener : mStrongListeners) {
-                notificationHandler.runOnListener(listener);
+            long max;
+            while (duration > (max = maxTime.get())) {
+                if (maxTime.compareAndSet(max, duration)) {
+                    break;
+                }
             }
         }
     }
 
+    /**
+     * Snapshot of metrics of a registered listener.
+     *
+     * @param <T> Interface with definition of object notifications.
+     */
+    public static final class ListenerMetrics<T> {
+        private final T mListener;
+        private final Object mChannel;
+        private final int mPriority;
+        private final long mCount;
+        private final long mTotalTime;
+        private final long mMaxTime;
+        private final long mExceptionCount;
+
+        private ListenerMetrics(T listener, Object channel, int priority, long count, long totalTime, long maxTime, long exceptionCount) {
+            mListener = listener;
+            mChannel = channel;
+            mPriority = priority;
+            mCount = count;
+            mTotalTime = totalTime;
+            mMaxTime = maxTime;
+            mExceptionCount = exceptionCount;
+        }
+
+        public T getListener() {
+            return mListener;
+        }
+
+        /**
+         * @return Channel of the listener or null.
+         */
+        public Object getChannel() {
+            return mChannel;
+        }
+
+        public int getPriority() {
+            return mPriority;
+        }
+
+        /**
+         * @return Number of measured notifications.
+         */
+        public long getCount() {
+            return mCount;
+        }
+
+        /**
+         * @return Cumulative duration of notifications in nanoseconds.
+         */
+        public long getTotalTime() {
+            return mTotalTime;
+        }
+
+        /**
+         * @return Average duration of a notification in nanoseconds.
+         */
+        public long getAverageTime() {
+            return (mCount == 0) ? 0 : mTotalTime / mCount;
+        }
+
+        /**
+         * @return Maximal duration of a notification in nanoseconds.
+         */
+        public long getMaxTime() {
+            return mMaxTime;
+        }
+
+        /**
+         * @return Number of exceptions thrown by the listener.
+         */
+        public long getExceptionCount() {
+            return mExceptionCount;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s [count=%d, total=%dns, max=%dns, exceptions=%d]",
+                    mListener, mCount, mTotalTime, mMaxTime, mExceptionCount);
+        }
+    }
+
+    /**
+     * Runs NotificationHandler objects passed as events.
+     */
+    private static final EventHandler<Object, Object> NOTIFICATION_HANDLER_ADAPTER = new EventHandler<Object, Object>() {
+        @Override
+        @SuppressWarnings("unchecked")
+        public void runOnListener(Object listener, Object notificationHandler) {
+            ((NotificationHandler<Object>) notificationHandler).runOnListener(listener);
+        }
+    };
+
     /**
      * Interface defining object's change notification handler.
      *
@@ -160,4 +1108,15 @@ public class ObjectListenerHandler<T> {
     public static abstract class NotificationHandler<T> {
         public abstract void runOnListener(T listener);
     }
+
+    /**
+     * Interface defining reusable handler of object's change events.
+     *
+     * @param <T> The object change listener on which the handler is suppose to
+     *           execute required notification.
+     * @param <E> Type of the event.
+     */
+    public static abstract class EventHandler<T, E> {
+        public abstract void runOnListener(T listener, E event);
+    }
 }
@@ -0,0 +1,43 @@
+/******************************************************************************
+ *
+ *  2015 (C) Copyright Open-RnD Sp. z o.o.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package pl.openrnd.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Interface defining migration of stored object between two consecutive schema versions.
+ *
+ * Migration works on the binary payload written by ObjectSerializer, so objects of
+ * the old class definition do not have to be deserialized.
+ *
+ * @see pl.openrnd.utils.ObjectMigrationRegistry
+ */
+public interface ObjectMigration {
+
+    /**
+     * Transforms payload of the previous schema version into the next one.
+     *
+     * @param inputStream Stream with payload in the previous version.
+     * @param outputStream Stream for payload in the next version.
+     * @throws IOException If payload cannot be migrated.
+     */
+    void migrate(InputStream inputStream, OutputStream outputStream) throws IOException;
+}
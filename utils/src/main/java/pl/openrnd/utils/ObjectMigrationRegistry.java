@@ -0,0 +1,78 @@
+/******************************************************************************
+ *
+ *  2015 (C) Copyright Open-RnD Sp. z o.o.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package pl.openrnd.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Registry of stored objects' schema migrations.
+ *
+ * Current schema version of a key is the number of migrations registered for it, so objects
+ * stored without any migration have version 0. Migrations of a key have to be registered
+ * for every version starting from 0.
+ *
+ * @see pl.openrnd.utils.ObjectPreferences#setMigrationRegistry(ObjectMigrationRegistry)
+ */
+public class ObjectMigrationRegistry {
+
+    private final Map<String, Map<Integer, ObjectMigration>> mMigrations = new HashMap<String, Map<Integer, ObjectMigration>>();
+
+    /**
+     * Registers migration of object stored under given key.
+     *
+     * @param name Key name of the object.
+     * @param fromVersion Schema version migrated by the migration, result has version fromVersion + 1.
+     * @param migration ObjectMigration object.
+     * @return This registry.
+     */
+    public synchronized ObjectMigrationRegistry register(String name, int fromVersion, ObjectMigration migration) {
+        Map<Integer, ObjectMigration> migrations = mMigrations.get(name);
+        if (migrations == null) {
+            migrations = new HashMap<Integer, ObjectMigration>();
+            mMigrations.put(name, migrations);
+        }
+        migrations.put(fromVersion, migration);
+
+        return this;
+    }
+
+    /**
+     * Gets current schema version of object stored under given key.
+     *
+     * @param name Key name of the object.
+     * @return Current schema version.
+     */
+    public synchronized int getVersion(String name) {
+        Map<Integer, ObjectMigration> migrations = mMigrations.get(name);
+        return (migrations == null) ? 0 : migrations.size();
+    }
+
+    /**
+     * Gets migration of object stored under given key.
+     *
+     * @param name Key name of the object.
+     * @param fromVersion Schema version to be migrated.
+     * @return ObjectMigration object or null if not registered.
+     */
+    public synchronized ObjectMigration getMigration(String name, int fromVersion) {
+        Map<Integer, ObjectMigration> migrations = mMigrations.get(name);
+        return (migrations == null) ? null : migrations.get(fromVersion);
+    }
+}
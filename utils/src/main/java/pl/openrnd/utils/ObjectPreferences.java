@@ -20,12 +20,69 @@ package pl.openrnd.utils;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Helper class for storing data in SharedPreferences.
+ *
+ * By default every write is committed synchronously. In write-behind mode writes are kept
+ * in memory and committed in a single transaction on a background thread, see enableWriteBehind().
+ *
+ * Objects are stored with schema version taken from ObjectMigrationRegistry. Objects stored in
+ * older version are migrated when read, see setMigrationRegistry().
  */
-public class ObjectPreferences {
+public class ObjectPreferences implements ObjectStorage {
+    private static final String TAG = ObjectPreferences.class.getSimpleName();
+
+    /**
+     * Schema version other than 0 and codec of compressed objects are stored in "#[version][codec]#"
+     * header, which is not a valid Base64 text.
+     */
+    private static final char HEADER_MARK = '#';
+    private static final char CODEC_DEFLATE = 'z';
+
     private SharedPreferences mAppPreferences = null;
+    private final String mName;
+    private final ObjectSerializer mSerializer;
+    private volatile ObjectMigrationRegistry mMigrationRegistry;
+    private volatile int mCompressionThreshold = -1;
+
+    private volatile boolean mIsStatsEnabled = false;
+    private final Map<String, SerializationStats> mStats = new HashMap<String, SerializationStats>();
+
+    private volatile LruCache<String, CacheEntry> mCache;
+    private final AtomicLong mCacheHitCount = new AtomicLong();
+    private final AtomicLong mCacheMissCount = new AtomicLong();
+    private final AtomicLong mCacheEvictionCount = new AtomicLong();
+
+    /**
+     * Serialized objects waiting for commit in write-behind mode, null value means removal.
+     */
+    private final Map<String, String> mPendingWrites = new HashMap<String, String>();
+    /**
+     * Held while SharedPreferences are modified, so write back of a migrated object never
+     * overwrites an object written after the migration started.
+     */
+    private final Object mWriteLock = new Object();
+    private ScheduledExecutorService mExecutor;
+    private long mWriteBehindDelay;
+    private boolean mIsWriteBehindEnabled = false;
+    private boolean mIsFlushScheduled = false;
 
     /**
      * Class constructor.
@@ -34,6 +91,21 @@ public class ObjectPreferences {
      * @param context Current context.
      */
     public ObjectPreferences(String name, Context context) {
+        this(name, context, new JavaObjectSerializer());
+    }
+
+    /**
+     * Class constructor.
+     *
+     * Objects stored with one serializer can be read only with the same serializer.
+     *
+     * @param name SharedPreference name.
+     * @param context Current context.
+     * @param serializer ObjectSerializer object defining binary format of stored objects.
+     */
+    public ObjectPreferences(String name, Context context, ObjectSerializer serializer) {
+        mName = name;
+        mSerializer = serializer;
         mAppPreferences = context.getApplicationContext().getSharedPreferences(name, Context.MODE_PRIVATE);
     }
 
@@ -41,14 +113,23 @@ public class ObjectPreferences {
      * Gets object from SharedPreferences.
      *
      * @param name Key name under which the object is stored.
-     * @return - Stored object or null if no object is stored or its deserialization failed.
+     * @return - Stored object or null if no object is stored.
+     * @throws IllegalStateException If stored object cannot be deserialized.
      */
+    @Override
     public Object getObject(String name) {
         Object result = null;
 
         if (name != null) {
-            String text = mAppPreferences.getString(name, null);
-            result = ObjectSerializerUtils.stringToObject(text);
+            String text;
+            synchronized (mPendingWrites) {
+                if (mPendingWrites.containsKey(name)) {
+                    text = mPendingWrites.get(name);
+                } else {
+                    text = mAppPreferences.getString(name, null);
+                }
+            }
+            result = decodeCached(name, text);
         }
 
         return result;
@@ -57,24 +138,19 @@ public class ObjectPreferences {
     /**
      * Put object to SharedPreferences.
      *
-     * Object must implement Serializable interface.
+     * Object must implement Serializable interface and be supported by the serializer.
      *
      * @param name Key name under which the object will be stored.
      * @param object Object to be stored. If object is null item under given name will be removed.
      * @return Result of putting object to sharedPreferences. If succeed return true otherwise return false.
+     *         In write-behind mode true is returned when the object is queued for writing.
      */
+    @Override
     public boolean putObject(String name, Object object) {
         boolean result = false;
 
         if (name != null) {
-            SharedPreferences.Editor editor = mAppPreferences.edit();
-            if (object == null) {
-                editor.remove(name);
-            } else {
-                editor.putString(name, ObjectSerializerUtils.objectToString(object));
-            }
-
-            result = editor.commit();
+            result = write(name, encode(name, object));
         }
 
         return result;
@@ -84,18 +160,648 @@ public class ObjectPreferences {
      * Remove object from SharedPreferences.
      *
      * @param name Key name of object to removed.
-     * @return True if object was removed, false otherwise.
+     * @return True if object was removed, false otherwise. In write-behind mode true is returned
+     *         when the removal is queued.
      */
+    @Override
     public boolean removeObject(String name) {
         boolean result = false;
 
         if (name != null) {
+            result = write(name, null);
+        }
+
+        return result;
+    }
+
+    /**
+     * Gets objects from SharedPreferences.
+     *
+     * @param names Key names under which the objects are stored.
+     * @return Map of key names and stored objects, null values for not stored objects.
+     * @throws IllegalStateException If any stored object cannot be deserialized.
+     */
+    @Override
+    public Map<String, Object> getObjects(Collection<String> names) {
+        Map<String, String> texts = new LinkedHashMap<String, String>();
+        synchronized (mPendingWrites) {
+            for (String name : names) {
+                if (name == null) {
+                    continue;
+                }
+                if (mPendingWrites.containsKey(name)) {
+                    texts.put(name, mPendingWrites.get(name));
+                } else {
+                    texts.put(name, mAppPreferences.getString(name, null));
+                }
+            }
+        }
+
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String, String> entry : texts.entrySet()) {
+            result.put(entry.getKey(), decodeCached(entry.getKey(), entry.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * Puts objects to SharedPreferences with a single commit.
+     *
+     * All objects are serialized before anything is written.
+     *
+     * @param objects Map of key names and objects to be stored. Items with null objects will be removed.
+     * @return Result of the commit. In write-behind mode true is returned when the objects are queued for writing.
+     */
+    @Override
+    public boolean putObjects(Map<String, ?> objects) {
+        Map<String, String> texts = new HashMap<String, String>();
+        for (Map.Entry<String, ?> entry : objects.entrySet()) {
+            if (entry.getKey() != null) {
+                texts.put(entry.getKey(), encode(entry.getKey(), entry.getValue()));
+            }
+        }
+
+        return write(texts);
+    }
+
+    /**
+     * Removes objects from SharedPreferences with a single commit.
+     *
+     * @param names Key names of objects to removed.
+     * @return Result of the commit. In write-behind mode true is returned when the removals are queued.
+     */
+    @Override
+    public boolean removeObjects(Collection<String> names) {
+        Map<String, String> texts = new HashMap<String, String>();
+        for (String name : names) {
+            if (name != null) {
+                texts.put(name, null);
+            }
+        }
+
+        return write(texts);
+    }
+
+    /**
+     * Sets registry of schema migrations.
+     *
+     * Objects are written with the current schema version of their keys. Objects stored in
+     * older version are migrated when read and written back in the current version.
+     *
+     * The first migration reads the stored payload while it is being decoded. Result of every
+     * migration is buffered in memory, as it is the input of the next one and the final payload
+     * is both written back and deserialized.
+     *
+     * @param migrationRegistry ObjectMigrationRegistry object or null if objects are not versioned.
+     */
+    public void setMigrationRegistry(ObjectMigrationRegistry migrationRegistry) {
+        mMigrationRegistry = migrationRegistry;
+    }
+
+    /**
+     * Enables write-behind mode.
+     *
+     * Writes are kept in memory and visible for getObject() immediately. They are committed
+     * in a single transaction on a background thread after provided delay since the first
+     * not committed write, so all writes within the delay are coalesced.
+     *
+     * @param delay Delay in millis.
+     */
+    public void enableWriteBehind(long delay) {
+        synchronized (mPendingWrites) {
+            if (mExecutor == null) {
+                mExecutor = Executors.newSingleThreadScheduledExecutor(mThreadFactory);
+            }
+            mWriteBehindDelay = delay;
+            mIsWriteBehindEnabled = true;
+        }
+    }
+
+    /**
+     * Disables write-behind mode. All pending writes are committed before method returns.
+     */
+    public void disableWriteBehind() {
+        synchronized (mPendingWrites) {
+            mIsWriteBehindEnabled = false;
+        }
+        flushNow();
+    }
+
+    /**
+     * Checks if write-behind mode is enabled.
+     *
+     * @return True if write-behind mode is enabled, false otherwise.
+     */
+    public boolean isWriteBehindEnabled() {
+        synchronized (mPendingWrites) {
+            return mIsWriteBehindEnabled;
+        }
+    }
+
+    /**
+     * Commits all pending writes on the calling thread.
+     *
+     * Should be called in moments when process may be killed, e.g. when application goes to background.
+     *
+     * @return Result of the commit. True if there was nothing to commit.
+     */
+    @Override
+    public boolean flushNow() {
+        synchronized (mWriteLock) {
+            Map<String, String> batch;
+            synchronized (mPendingWrites) {
+                if (mPendingWrites.isEmpty()) {
+                    return true;
+                }
+                batch = new HashMap<String, String>(mPendingWrites);
+            }
+
             SharedPreferences.Editor editor = mAppPreferences.edit();
-            editor.remove(name);
+            for (Map.Entry<String, String> entry : batch.entrySet()) {
+                if (entry.getValue() == null) {
+                    editor.remove(entry.getKey());
+                } else {
+                    editor.putString(entry.getKey(), entry.getValue());
+                }
+            }
+
+            boolean result = editor.commit();
+            if (result) {
+                synchronized (mPendingWrites) {
+                    for (Map.Entry<String, String> entry : batch.entrySet()) {
+                        //Writes made during commit stay pending
+                        if (mPendingWrites.get(entry.getKey()) == entry.getValue()) {
+                            mPendingWrites.remove(entry.getKey());
+                        }
+                    }
+                }
+            } else {
+                Log.e(TAG, String.format("flushNow(): commit failed, name[%s]", mName));
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * Sets minimal size of serialized object which is compressed before storing.
+     *
+     * Objects are compressed with Deflate algorithm and the codec is marked in the stored header,
+     * so objects stored before enabling compression remain readable.
+     *
+     * @param threshold Size in bytes or negative value to disable compression. Default is -1.
+     */
+    public void setCompressionThreshold(int threshold) {
+        mCompressionThreshold = threshold;
+    }
+
+    /**
+     * Enables collecting serialization statistics per key.
+     *
+     * @param enabled True to collect statistics, false otherwise. Default is false.
+     */
+    public void setStatsEnabled(boolean enabled) {
+        mIsStatsEnabled = enabled;
+    }
+
+    /**
+     * Gets snapshot of serialization statistics.
+     *
+     * @return Map of key names and their statistics.
+     */
+    public Map<String, SerializationStats> getStats() {
+        Map<String, SerializationStats> result = new HashMap<String, SerializationStats>();
+        synchronized (mStats) {
+            for (Map.Entry<String, SerializationStats> entry : mStats.entrySet()) {
+                result.put(entry.getKey(), entry.getValue().copy());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Clears serialization statistics.
+     */
+    public void resetStats() {
+        synchronized (mStats) {
+            mStats.clear();
+        }
+    }
+
+    /**
+     * Enables cache of decoded objects.
+     *
+     * Objects returned by getObject() are cached and returned again while their stored form
+     * is not changed, so cached objects are shared and must not be modified by callers.
+     * Least recently used objects are evicted when estimated size of cached objects exceeds
+     * maxSize. Size of an object is estimated as length of its stored text.
+     *
+     * @param maxSize Maximal size of cached objects in bytes, 0 disables the cache. Default is 0.
+     */
+    public void setCacheSize(int maxSize) {
+        if (maxSize <= 0) {
+            mCache = null;
+            return;
+        }
+
+        mCache = new LruCache<String, CacheEntry>(maxSize) {
+            @Override
+            protected int sizeOf(String name, CacheEntry entry) {
+                return Math.max(entry.text.length(), 1);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String name, CacheEntry oldEntry, CacheEntry newEntry) {
+                if (evicted) {
+                    mCacheEvictionCount.incrementAndGet();
+                }
+            }
+        };
+    }
+
+    /**
+     * Gets number of getObject() calls which returned cached object.
+     *
+     * @return Number of cache hits.
+     */
+    public long getCacheHitCount() {
+        return mCacheHitCount.get();
+    }
+
+    /**
+     * Gets number of getObject() calls which decoded stored object with the cache enabled.
+     *
+     * @return Number of cache misses.
+     */
+    public long getCacheMissCount() {
+        return mCacheMissCount.get();
+    }
+
+    /**
+     * Gets number of objects evicted from the cache because of its size limit.
+     *
+     * @return Number of cache evictions.
+     */
+    public long getCacheEvictionCount() {
+        return mCacheEvictionCount.get();
+    }
+
+    /**
+     * Resets cache hit, miss and eviction counters.
+     */
+    public void resetCacheCounters() {
+        mCacheHitCount.set(0);
+        mCacheMissCount.set(0);
+        mCacheEvictionCount.set(0);
+    }
+
+    /**
+     * Decodes object's text using the cache if enabled.
+     *
+     * Cached object is returned only if it was decoded from the same text, so objects decoded
+     * concurrently with writes never become visible after the write.
+     */
+    private Object decodeCached(String name, String text) {
+        LruCache<String, CacheEntry> cache = mCache;
+        if ((cache == null) || (text == null)) {
+            return decode(name, text);
+        }
+
+        CacheEntry entry = cache.get(name);
+        if ((entry != null) && entry.text.equals(text)) {
+            mCacheHitCount.incrementAndGet();
+            return entry.object;
+        }
+
+        mCacheMissCount.incrementAndGet();
+        Object result = decode(name, text);
+        if (result != null) {
+            cache.put(name, new CacheEntry(text, result));
+        }
+        return result;
+    }
+
+    private void invalidateCache(String name) {
+        LruCache<String, CacheEntry> cache = mCache;
+        if (cache != null) {
+            cache.remove(name);
+        }
+    }
+
+    private SerializationStats obtainStats(String name) {
+        if (!mIsStatsEnabled) {
+            return null;
+        }
+
+        synchronized (mStats) {
+            SerializationStats result = mStats.get(name);
+            if (result == null) {
+                result = new SerializationStats();
+                mStats.put(name, result);
+            }
+            return result;
+        }
+    }
 
-            result = editor.commit();
+    /**
+     * Gets serializer of object stored under given key.
+     */
+    ObjectSerializer getSerializer(String name) {
+        return mSerializer;
+    }
+
+    private int getSchemaVersion(String name) {
+        ObjectMigrationRegistry migrationRegistry = mMigrationRegistry;
+        return (migrationRegistry == null) ? 0 : migrationRegistry.getVersion(name);
+    }
+
+    private String encode(String name, Object object) {
+        if (object == null) {
+            return null;
+        }
+
+        SerializationStats stats = obtainStats(name);
+        long startTime = (stats == null) ? 0 : System.nanoTime();
+
+        ObjectSerializerUtils.ReusableBuffer payload = ObjectSerializerUtils.serializeToBuffer(object, getSerializer(name));
+        try {
+            return buildText(getSchemaVersion(name), payload.array(), payload.size(), stats, startTime);
+        } finally {
+            ObjectSerializerUtils.recycleBuffer(payload);
+        }
+    }
+
+    /**
+     * Builds stored text, compressing serialized object if needed. Header with schema version and
+     * codec is omitted for not compressed objects in version 0, so such objects are stored as
+     * plain Base64 text.
+     *
+     * @param version Schema version.
+     * @param payload Buffer with serialized object, it may be a thread's reusable buffer.
+     * @param count Serialized object's length.
+     * @param stats Stats to update or null.
+     * @param startTime Encoding start time used for stats.
+     */
+    private String buildText(int version, byte[] payload, int count, SerializationStats stats, long startTime) {
+        byte[] stored = payload;
+        int storedCount = count;
+        int threshold = mCompressionThreshold;
+        ObjectSerializerUtils.ReusableBuffer compressed = null;
+        if ((threshold >= 0) && (count >= threshold)) {
+            compressed = ObjectSerializerUtils.compressToBuffer(payload, 0, count);
+            if (compressed.size() < count) {
+                stored = compressed.array();
+                storedCount = compressed.size();
+            }
+        }
+        boolean isCompressed = (stored != payload);
+
+        String header = null;
+        if ((version != 0) || isCompressed) {
+            StringBuilder builder = new StringBuilder(8);
+            builder.append(HEADER_MARK);
+            if (version != 0) {
+                builder.append(version);
+            }
+            if (isCompressed) {
+                builder.append(CODEC_DEFLATE);
+            }
+            builder.append(HEADER_MARK);
+            header = builder.toString();
+        }
+
+        String result = ObjectSerializerUtils.bytesToString(header, stored, 0, storedCount);
+        if (compressed != null) {
+            ObjectSerializerUtils.recycleBuffer(compressed);
+        }
+
+        if (stats != null) {
+            stats.onEncode(count, storedCount, System.nanoTime() - startTime);
         }
 
         return result;
     }
+
+    private Object decode(String name, String text) {
+        if (text == null) {
+            return null;
+        }
+
+        int offset = 0;
+        int storedVersion = 0;
+        boolean isCompressed = false;
+        if (text.charAt(0) == HEADER_MARK) {
+            int end = text.indexOf(HEADER_MARK, 1);
+            if (end < 0) {
+                throw new IllegalStateException(String.format("Malformed header: name[%s]", name));
+            }
+            isCompressed = (text.charAt(end - 1) == CODEC_DEFLATE);
+            int versionEnd = isCompressed ? end - 1 : end;
+            try {
+                storedVersion = (versionEnd > 1) ? Integer.parseInt(text.substring(1, versionEnd)) : 0;
+            } catch (RuntimeException e) {
+                throw new IllegalStateException(String.format("Malformed schema version: name[%s]", name), e);
+            }
+            offset = end + 1;
+        }
+
+        SerializationStats stats = obtainStats(name);
+        long startTime = (stats == null) ? 0 : System.nanoTime();
+
+        Object result;
+        ObjectSerializer serializer = getSerializer(name);
+        int currentVersion = getSchemaVersion(name);
+        InputStream inputStream = ObjectSerializerUtils.openStringStream(text, offset);
+        try {
+            if (isCompressed) {
+                inputStream = ObjectSerializerUtils.openDecompressingStream(inputStream);
+            }
+
+            if (storedVersion < currentVersion) {
+                byte[] payload = migrate(name, text, inputStream, storedVersion, currentVersion);
+                result = ObjectSerializerUtils.bytesToObject(payload, serializer);
+            } else {
+                //Object is decoded and decompressed while being deserialized
+                result = ObjectSerializerUtils.streamToObject(inputStream, serializer);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("Malformed object: name[%s]", name), e);
+        } finally {
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                Log.w(TAG, String.format("decode(): EXC[%s]", e.getMessage()));
+            }
+        }
+
+        if (stats != null) {
+            stats.onDecode(System.nanoTime() - startTime);
+        }
+
+        return result;
+    }
+
+    /**
+     * Migrates stored object to the current schema version and writes it back.
+     *
+     * @param name Key name.
+     * @param storedText Stored text with header.
+     * @param inputStream Stream with stored object's serialized form.
+     * @param storedVersion Schema version of stored object.
+     * @param currentVersion Current schema version.
+     * @return Migrated object's serialized form.
+     */
+    private byte[] migrate(String name, String storedText, InputStream inputStream, int storedVersion, int currentVersion) {
+        Log.d(TAG, String.format("migrate(): name[%s], from[%d], to[%d]", name, storedVersion, currentVersion));
+
+        ObjectMigrationRegistry migrationRegistry = mMigrationRegistry;
+        byte[] payload = null;
+        try {
+            for (int version = storedVersion; version < currentVersion; ++version) {
+                ObjectMigration migration = migrationRegistry.getMigration(name, version);
+                if (migration == null) {
+                    throw new IOException(String.format("No migration from version[%d]", version));
+                }
+
+                ByteArrayOutputStream outputStream = new ByteArrayOutputStream((payload == null) ? 1024 : payload.length);
+                migration.migrate((payload == null) ? inputStream : new ByteArrayInputStream(payload), outputStream);
+                payload = outputStream.toByteArray();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("Migration failed: name[%s]", name), e);
+        }
+
+        String result = buildText(currentVersion, payload, payload.length, null, 0);
+        synchronized (mWriteLock) {
+            synchronized (mPendingWrites) {
+                String current = mPendingWrites.containsKey(name) ? mPendingWrites.get(name) : mAppPreferences.getString(name, null);
+                //Object could be written meanwhile
+                if (!storedText.equals(current)) {
+                    return payload;
+                }
+                if (mIsWriteBehindEnabled) {
+                    invalidateCache(name);
+                    enqueueWrite(name, result);
+                    return payload;
+                }
+            }
+
+            //Written back without blocking, if it is lost the object is migrated again
+            invalidateCache(name);
+            SharedPreferences.Editor editor = mAppPreferences.edit();
+            editor.putString(name, result);
+            editor.apply();
+        }
+
+        return payload;
+    }
+
+    /**
+     * Writes object's text.
+     *
+     * @param name Key name.
+     * @param text Object's text or null for removal.
+     * @return Result of the commit or true in write-behind mode.
+     */
+    private boolean write(String name, String text) {
+        invalidateCache(name);
+
+        if (isWriteBehindEnabled()) {
+            enqueueWrite(name, text);
+            return true;
+        }
+
+        synchronized (mWriteLock) {
+            SharedPreferences.Editor editor = mAppPreferences.edit();
+            if (text == null) {
+                editor.remove(name);
+            } else {
+                editor.putString(name, text);
+            }
+
+            return editor.commit();
+        }
+    }
+
+    /**
+     * Writes texts of objects with a single commit.
+     *
+     * @param texts Map of key names and objects' texts, null texts for removal.
+     * @return Result of the commit or true in write-behind mode.
+     */
+    private boolean write(Map<String, String> texts) {
+        if (texts.isEmpty()) {
+            return true;
+        }
+
+        for (String name : texts.keySet()) {
+            invalidateCache(name);
+        }
+
+        if (isWriteBehindEnabled()) {
+            synchronized (mPendingWrites) {
+                for (Map.Entry<String, String> entry : texts.entrySet()) {
+                    enqueueWrite(entry.getKey(), entry.getValue());
+                }
+            }
+            return true;
+        }
+
+        synchronized (mWriteLock) {
+            SharedPreferences.Editor editor = mAppPreferences.edit();
+            for (Map.Entry<String, String> entry : texts.entrySet()) {
+                if (entry.getValue() == null) {
+                    editor.remove(entry.getKey());
+                } else {
+                    editor.putString(entry.getKey(), entry.getValue());
+                }
+            }
+
+            return editor.commit();
+        }
+    }
+
+    private void enqueueWrite(String name, String text) {
+        synchronized (mPendingWrites) {
+            mPendingWrites.put(name, text);
+
+            if (!mIsFlushScheduled) {
+                mIsFlushScheduled = true;
+                mExecutor.schedule(mFlushRunnable, mWriteBehindDelay, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mPendingWrites) {
+                mIsFlushScheduled = false;
+            }
+            flushNow();
+        }
+    };
+
+    /**
+     * Decoded object with the text it was decoded from.
+     */
+    private static class CacheEntry {
+        private final String text;
+        private final Object object;
+
+        private CacheEntry(String text, Object object) {
+            this.text = text;
+            this.object = object;
+        }
+    }
+
+    private final ThreadFactory mThreadFactory = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, String.format("%s-%s", TAG, mName));
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    };
 }
@@ -0,0 +1,52 @@
+/******************************************************************************
+ *
+ *  2015 (C) Copyright Open-RnD Sp. z o.o.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package pl.openrnd.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Interface defining object's binary serialization format.
+ *
+ * Implementations must be thread safe.
+ *
+ * @see pl.openrnd.utils.JavaObjectSerializer
+ * @see pl.openrnd.utils.CompactObjectSerializer
+ */
+public interface ObjectSerializer {
+
+    /**
+     * Writes object to the stream.
+     *
+     * @param object Object to be serialized, may be null.
+     * @param outputStream Stream to write to. Stream is not closed.
+     * @throws IOException If object cannot be serialized.
+     */
+    void serialize(Object object, OutputStream outputStream) throws IOException;
+
+    /**
+     * Reads object from the stream.
+     *
+     * @param inputStream Stream with data written by serialize() method.
+     * @return Deserialized object.
+     * @throws IOException If object cannot be deserialized.
+     */
+    Object deserialize(InputStream inputStream) throws IOException;
+}
@@ -19,66 +19,698 @@
 package pl.openrnd.utils;
 
 import android.util.Base64;
+import android.util.Base64InputStream;
+import android.util.Base64OutputStream;
 import android.util.Log;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.ObjectInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 public class ObjectSerializerUtils  {
     private static final String TAG = ObjectSerializerUtils.class.getSimpleName();
 
+    private static final ObjectSerializer DEFAULT_SERIALIZER = new JavaObjectSerializer();
+
+    private static final int CODER_POOL_SIZE = 4;
+    private static final Deque<Deflater> sDeflaters = new ArrayDeque<Deflater>();
+    private static final Deque<Inflater> sInflaters = new ArrayDeque<Inflater>();
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    static final int BUFFER_RAW = 0;
+    static final int BUFFER_COMPRESSED = 1;
+    static final int BUFFER_TEXT = 2;
+    private static final int BUFFER_INITIAL_SIZE = 1024;
+    private static final int BUFFER_MAX_RETAINED_SIZE = 2 * 1024 * 1024;
+
     /**
-     * Convert Object to String.
+     * Per thread buffers reused by serialization routines, so serializing large objects
+     * does not allocate intermediate arrays. Buffers larger than BUFFER_MAX_RETAINED_SIZE
+     * are released when returned with recycleBuffer().
+     */
+    private static final ThreadLocal<ReusableBuffer[]> sBuffers = new ThreadLocal<ReusableBuffer[]>() {
+        @Override
+        protected ReusableBuffer[] initialValue() {
+            return new ReusableBuffer[BUFFER_TEXT + 1];
+        }
+    };
+
+    /**
+     * Convert Object to String using standard Java serialization.
      * @param object Object must implements Serializable
      * @return
      */
     public static String objectToString(Object object) {
+        return objectToString(object, DEFAULT_SERIALIZER);
+    }
+
+    /**
+     * Convert Object to String.
+     * @param object Object supported by provided serializer
+     * @param serializer ObjectSerializer object defining binary format
+     * @return Base64 encoded serialized object or null if object is null
+     */
+    public static String objectToString(Object object, ObjectSerializer serializer) {
         String encoded = null;
 
         if (object != null) {
-            try {
-                ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-                ObjectOutputStream objectOutputStream = new ObjectOutputStream(
-                        byteArrayOutputStream);
-                objectOutputStream.writeObject(object);
-                objectOutputStream.close();
-                encoded = new String(Base64.encode(byteArrayOutputStream.toByteArray(), Base64.DEFAULT));
-            } catch (Exception e) {
-                Log.e(TAG, String.format("objectToString(): EXC[%s]", e.getMessage()));
-                e.printStackTrace();
+            ReusableBuffer buffer = obtainBuffer(BUFFER_TEXT);
+            writeObject(object, serializer, buffer);
+            encoded = buffer.toAsciiString();
+            recycleBuffer(buffer);
+        }
 
-                throw new IllegalStateException(e);
+        return encoded;
+    }
+
+    /**
+     * Writes Object to the stream as Base64 text using standard Java serialization.
+     * @param object Object must implements Serializable
+     * @param outputStream Stream to write to, it is not closed
+     */
+    public static void writeObject(Object object, OutputStream outputStream) {
+        writeObject(object, DEFAULT_SERIALIZER, outputStream);
+    }
+
+    /**
+     * Writes Object to the stream as Base64 text, the same as returned by objectToString().
+     *
+     * Object is encoded while being serialized, without intermediate buffers.
+     *
+     * @param object Object supported by provided serializer
+     * @param serializer ObjectSerializer object defining binary format
+     * @param outputStream Stream to write to, it is not closed
+     */
+    public static void writeObject(Object object, ObjectSerializer serializer, OutputStream outputStream) {
+        try {
+            Base64OutputStream base64OutputStream = new Base64OutputStream(new NonClosingOutputStream(outputStream), Base64.DEFAULT);
+            serialize(object, serializer, base64OutputStream);
+            //Closing writes the last Base64 block
+            base64OutputStream.close();
+        } catch (Exception e) {
+            Log.e(TAG, String.format("writeObject(): EXC[%s]", e.getMessage()));
+            e.printStackTrace();
+
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads Object from the stream with Base64 text using standard Java serialization.
+     * @param inputStream Stream to read from
+     * @return Deserialized object
+     * @throws IllegalStateException If text is not valid Base64 or object cannot be deserialized
+     */
+    public static Object readObject(InputStream inputStream) {
+        return readObject(inputStream, DEFAULT_SERIALIZER);
+    }
+
+    /**
+     * Reads Object from the stream with Base64 text written by writeObject() or objectToString().
+     *
+     * Object is decoded while being deserialized, without intermediate buffers.
+     *
+     * @param inputStream Stream to read from
+     * @param serializer ObjectSerializer object used for serializing the object
+     * @return Deserialized object
+     * @throws IllegalStateException If text is not valid Base64 or object cannot be deserialized
+     */
+    public static Object readObject(InputStream inputStream, ObjectSerializer serializer) {
+        return streamToObject(new Base64InputStream(inputStream, Base64.DEFAULT), serializer);
+    }
+
+    /**
+     * Serializes Object.
+     * @param object Object supported by provided serializer
+     * @param serializer ObjectSerializer object defining binary format
+     * @return Serialized object
+     */
+    public static byte[] objectToBytes(Object object, ObjectSerializer serializer) {
+        try {
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+            serialize(object, serializer, byteArrayOutputStream);
+            return byteArrayOutputStream.toByteArray();
+        } catch (Exception e) {
+            Log.e(TAG, String.format("objectToBytes(): EXC[%s]", e.getMessage()));
+            e.printStackTrace();
+
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Deserializes Object.
+     * @param bytes Serialized object
+     * @param serializer ObjectSerializer object used for serializing the object
+     * @return Deserialized object
+     * @throws IllegalStateException If object cannot be deserialized
+     */
+    public static Object bytesToObject(byte[] bytes, ObjectSerializer serializer) {
+        return streamToObject(new ByteArrayInputStream(bytes), serializer);
+    }
+
+    /**
+     * Creates deep copy of the Object using standard Java serialization.
+     * @param object Object must implements Serializable
+     * @return Copy of the object or null if object is null
+     */
+    public static Object copyObject(Object object) {
+        if (object == null) {
+            return null;
+        }
+
+        ReusableBuffer buffer = serializeToBuffer(object, DEFAULT_SERIALIZER);
+        try {
+            return streamToObject(new ByteArrayInputStream(buffer.array(), 0, buffer.size()), DEFAULT_SERIALIZER);
+        } finally {
+            recycleBuffer(buffer);
+        }
+    }
+
+    /**
+     * Serializes Object with provided serializer.
+     *
+     * SerializedObject is written without serializing it again if it was serialized with the same
+     * format, otherwise its original object is serialized.
+     */
+    static void serialize(Object object, ObjectSerializer serializer, OutputStream outputStream) throws IOException {
+        if (object instanceof SerializedObject) {
+            SerializedObject serializedObject = (SerializedObject) object;
+            if (serializer.getClass() == JavaObjectSerializer.class) {
+                outputStream.write(serializedObject.mBytes);
+                return;
             }
+            object = serializedObject.getObject();
         }
+        serializer.serialize(object, outputStream);
+    }
 
-        return encoded;
+    /**
+     * Deserializes Object from the stream with serialized object.
+     */
+    static Object streamToObject(InputStream inputStream, ObjectSerializer serializer) {
+        try {
+            return serializer.deserialize(inputStream);
+        } catch (Exception e) {
+            Log.e(TAG, String.format("streamToObject(): EXC[%s]", e.getMessage()));
+            e.printStackTrace();
+
+            throw new IllegalStateException(e);
+        }
     }
 
     /**
-     * Convert String to Object
+     * Serializes Object to the calling thread's BUFFER_RAW buffer using standard Java serialization.
+     */
+    static ReusableBuffer serializeToBuffer(Object object) {
+        return serializeToBuffer(object, DEFAULT_SERIALIZER);
+    }
+
+    /**
+     * Serializes Object to the calling thread's BUFFER_RAW buffer.
+     */
+    static ReusableBuffer serializeToBuffer(Object object, ObjectSerializer serializer) {
+        ReusableBuffer result = obtainBuffer(BUFFER_RAW);
+        try {
+            serialize(object, serializer, result);
+        } catch (Exception e) {
+            Log.e(TAG, String.format("serializeToBuffer(): EXC[%s]", e.getMessage()));
+            e.printStackTrace();
+            recycleBuffer(result);
+
+            throw new IllegalStateException(e);
+        }
+        return result;
+    }
+
+    /**
+     * Convert String to Object using standard Java serialization.
      * @param string
      * @return object converted from String
      */
     public static Object stringToObject(String string) {
+        return stringToObject(string, DEFAULT_SERIALIZER);
+    }
+
+    /**
+     * Convert String to Object
+     * @param string Text created with objectToString() method
+     * @param serializer ObjectSerializer object used for creating the text
+     * @return object converted from String
+     * @throws IllegalStateException If text is not valid Base64 or object cannot be deserialized
+     */
+    public static Object stringToObject(String string, ObjectSerializer serializer) {
         Object object = null;
 
         if (string == null) {
             return object;
         }
 
-        byte[] bytes = Base64.decode(string.getBytes(), Base64.DEFAULT);
+        object = readObject(new StringInputStream(string, 0), serializer);
+
+        return object;
+    }
+
+    /**
+     * Convert serialized object's bytes to String.
+     * @param bytes Serialized object
+     * @return Base64 encoded bytes
+     */
+    public static String bytesToString(byte[] bytes) {
+        return bytesToString(null, bytes, 0, bytes.length);
+    }
+
+    /**
+     * Converts bytes to Base64 text prefixed with ASCII header, using the calling thread's BUFFER_TEXT buffer.
+     */
+    static String bytesToString(String header, byte[] bytes, int offset, int count) {
+        ReusableBuffer buffer = obtainBuffer(BUFFER_TEXT);
+        try {
+            if (header != null) {
+                buffer.write(header.getBytes(US_ASCII));
+            }
+            Base64OutputStream base64OutputStream = new Base64OutputStream(buffer, Base64.DEFAULT);
+            base64OutputStream.write(bytes, offset, count);
+            base64OutputStream.close();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        String result = buffer.toAsciiString();
+        recycleBuffer(buffer);
+        return result;
+    }
+
+    /**
+     * Opens stream decoding Base64 text starting at given offset.
+     */
+    static InputStream openStringStream(String string, int offset) {
+        return new Base64InputStream(new StringInputStream(string, offset), Base64.DEFAULT);
+    }
+
+    /**
+     * Convert String created with objectToString() or bytesToString() to serialized object's bytes.
+     * @param string Text to be converted
+     * @return Serialized object
+     * @throws IllegalStateException If text is not valid Base64
+     */
+    public static byte[] stringToBytes(String string) {
+        try {
+            return Base64.decode(string.getBytes(), Base64.DEFAULT);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Compresses data with Deflate algorithm.
+     *
+     * Deflater objects are pooled and reused.
+     *
+     * @param bytes Data to be compressed.
+     * @return Compressed data prefixed with original data length.
+     */
+    public static byte[] compress(byte[] bytes) {
+        ReusableBuffer buffer = compressToBuffer(bytes, 0, bytes.length);
+        byte[] result = buffer.toByteArray();
+        recycleBuffer(buffer);
+        return result;
+    }
+
+    /**
+     * Compresses data to the calling thread's BUFFER_COMPRESSED buffer.
+     */
+    static ReusableBuffer compressToBuffer(byte[] bytes, int offset, int count) {
+        ReusableBuffer result = obtainBuffer(BUFFER_COMPRESSED);
+        Deflater deflater = obtainDeflater();
+        try {
+            deflater.setInput(bytes, offset, count);
+            deflater.finish();
+
+            writeInt(result, count);
+            result.write(deflater);
+
+            return result;
+        } finally {
+            recycleDeflater(deflater);
+        }
+    }
+
+    /**
+     * Opens stream decompressing data created with compress() method.
+     *
+     * Closing the stream returns used Inflater to the pool.
+     */
+    static InputStream openDecompressingStream(InputStream inputStream) throws IOException {
+        for (int i = 0; i < 4; ++i) {
+            //Skip original data length
+            if (inputStream.read() < 0) {
+                throw new IOException("Malformed compressed data");
+            }
+        }
+        return new PooledInflaterInputStream(inputStream, obtainInflater());
+    }
+
+    /**
+     * Decompresses data created with compress() method.
+     *
+     * @param bytes Compressed data.
+     * @return Original data.
+     * @throws IllegalStateException If data is malformed.
+     */
+    public static byte[] decompress(byte[] bytes) {
+        if (bytes.length < 4) {
+            throw new IllegalStateException("Malformed compressed data");
+        }
+
+        int length = ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16) | ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
+        if (length < 0) {
+            throw new IllegalStateException("Malformed compressed data");
+        }
+
+        Inflater inflater = obtainInflater();
         try {
-            ObjectInputStream objectInputStream = new ObjectInputStream(new ByteArrayInputStream(bytes));
-            object = objectInputStream.readObject();
+            inflater.setInput(bytes, 4, bytes.length - 4);
+
+            byte[] result = new byte[length];
+            int offset = 0;
+            while (offset < length) {
+                int count = inflater.inflate(result, offset, length - offset);
+                if ((count == 0) && (inflater.finished() || inflater.needsInput())) {
+                    throw new IllegalStateException("Truncated compressed data");
+                }
+                offset += count;
+            }
+
+            return result;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            recycleInflater(inflater);
+        }
+    }
+
+    private static void writeInt(ByteArrayOutputStream outputStream, int value) {
+        outputStream.write(value >>> 24);
+        outputStream.write(value >>> 16);
+        outputStream.write(value >>> 8);
+        outputStream.write(value);
+    }
+
+    private static Deflater obtainDeflater() {
+        synchronized (sDeflaters) {
+            Deflater result = sDeflaters.poll();
+            if (result != null) {
+                return result;
+            }
+        }
+        return new Deflater(Deflater.BEST_SPEED);
+    }
+
+    private static void recycleDeflater(Deflater deflater) {
+        deflater.reset();
+        synchronized (sDeflaters) {
+            if (sDeflaters.size() < CODER_POOL_SIZE) {
+                sDeflaters.push(deflater);
+                return;
+            }
+        }
+        deflater.end();
+    }
+
+    private static Inflater obtainInflater() {
+        synchronized (sInflaters) {
+            Inflater result = sInflaters.poll();
+            if (result != null) {
+                return result;
+            }
+        }
+        return new Inflater();
+    }
+
+    private static void recycleInflater(Inflater inflater) {
+        inflater.reset();
+        synchronized (sInflaters) {
+            if (sInflaters.size() < CODER_POOL_SIZE) {
+                sInflaters.push(inflater);
+                return;
+            }
+        }
+        inflater.end();
+    }
+
+    static ReusableBuffer obtainBuffer(int index) {
+        ReusableBuffer[] buffers = sBuffers.get();
+        ReusableBuffer result = buffers[index];
+        if ((result == null) || (result.capacity() > BUFFER_MAX_RETAINED_SIZE)) {
+            result = new ReusableBuffer();
+            buffers[index] = result;
+        }
+        result.reset();
+        return result;
+    }
+
+    /**
+     * Returns buffer obtained with obtainBuffer() when its content is no longer used.
+     * Buffer larger than BUFFER_MAX_RETAINED_SIZE is released, so it is not kept by the thread.
+     */
+    static void recycleBuffer(ReusableBuffer buffer) {
+        if (buffer.capacity() > BUFFER_MAX_RETAINED_SIZE) {
+            ReusableBuffer[] buffers = sBuffers.get();
+            for (int i = 0; i < buffers.length; ++i) {
+                if (buffers[i] == buffer) {
+                    buffers[i] = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * ByteArrayOutputStream giving access to its content without copying.
+     */
+    static class ReusableBuffer extends ByteArrayOutputStream {
+
+        private ReusableBuffer() {
+            super(BUFFER_INITIAL_SIZE);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+
+        String toAsciiString() {
+            return new String(buf, 0, count, US_ASCII);
+        }
+
+        /**
+         * Writes all output of finished Deflater.
+         */
+        void write(Deflater deflater) {
+            while (!deflater.finished()) {
+                if (buf.length - count < BUFFER_INITIAL_SIZE) {
+                    buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + BUFFER_INITIAL_SIZE));
+                }
+                count += deflater.deflate(buf, count, buf.length - count);
+            }
+        }
+    }
+
+    /**
+     * InputStream reading ASCII characters of a String as bytes.
+     */
+    private static class StringInputStream extends InputStream {
+        private final String mString;
+        private int mPosition;
+
+        private StringInputStream(String string, int offset) {
+            mString = string;
+            mPosition = offset;
+        }
+
+        @Override
+        public int read() {
+            return (mPosition < mString.length()) ? (mString.charAt(mPosition++) & 0xFF) : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) {
+            int remaining = mString.length() - mPosition;
+            if (remaining <= 0) {
+                return -1;
+            }
+            count = Math.min(count, remaining);
+            for (int i = 0; i < count; ++i) {
+                buffer[offset + i] = (byte) mString.charAt(mPosition + i);
+            }
+            mPosition += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return mString.length() - mPosition;
+        }
+    }
+
+    /**
+     * OutputStream which does not close the target stream.
+     */
+    static class NonClosingOutputStream extends FilterOutputStream {
+
+        NonClosingOutputStream(OutputStream outputStream) {
+            super(outputStream);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            out.write(buffer, offset, count);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    /**
+     * InflaterInputStream returning its Inflater to the pool when closed.
+     */
+    private static class PooledInflaterInputStream extends InflaterInputStream {
+        private boolean mIsClosed = false;
+
+        private PooledInflaterInputStream(InputStream inputStream, Inflater inflater) {
+            super(inputStream, inflater);
+        }
+
+        @Override
+        public void close() {
+            if (!mIsClosed) {
+                mIsClosed = true;
+                recycleInflater(inf);
+            }
+        }
+    }
+
+    /**
+     * Calculates fingerprint of object's serialized form.
+     *
+     * Serialized data is not buffered, it is streamed directly to the digest.
+     *
+     * @param object Object must implements Serializable
+     * @return MD5 digest of serialized object or null if object is null.
+     */
+    public static byte[] fingerprint(Object object) {
+        byte[] result = null;
+
+        if (object != null) {
+            try {
+                MessageDigest digest = MessageDigest.getInstance("MD5");
+                ObjectOutputStream objectOutputStream = new ObjectOutputStream(
+                        new DigestOutputStream(NULL_OUTPUT_STREAM, digest));
+                objectOutputStream.writeObject(object);
+                objectOutputStream.close();
+                result = digest.digest();
+            } catch (Exception e) {
+                Log.e(TAG, String.format("fingerprint(): EXC[%s]", e.getMessage()));
+                e.printStackTrace();
+
+                throw new IllegalStateException(e);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Calculates fingerprint of object serialized to the buffer with serializeToBuffer(Object).
+     *
+     * @return MD5 digest, the same as returned by fingerprint(Object) for the serialized object.
+     */
+    static byte[] fingerprint(ReusableBuffer buffer) {
+        return fingerprint(buffer.array(), buffer.size());
+    }
+
+    /**
+     * Calculates fingerprint of serialized object.
+     *
+     * @return MD5 digest, the same as returned by fingerprint(Object) for the original object.
+     */
+    static byte[] fingerprint(SerializedObject serializedObject) {
+        return fingerprint(serializedObject.mBytes, serializedObject.mBytes.length);
+    }
+
+    private static byte[] fingerprint(byte[] bytes, int count) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            digest.update(bytes, 0, count);
+            return digest.digest();
         } catch (Exception e) {
-            Log.e(TAG, String.format("stringToObject(): EXC[%s]", e.getMessage()));
+            Log.e(TAG, String.format("fingerprint(): EXC[%s]", e.getMessage()));
             e.printStackTrace();
 
             throw new IllegalStateException(e);
         }
+    }
 
-        return object;
+    /**
+     * Object already serialized with standard Java serialization.
+     *
+     * It can be passed to ObjectStorage instead of the object, so storage using JavaObjectSerializer
+     * writes serialized data as is.
+     */
+    static final class SerializedObject {
+        private final Object mObject;
+        private final byte[] mBytes;
+
+        /**
+         * Creates serialized object keeping reference to the original object.
+         */
+        SerializedObject(Object object, ReusableBuffer buffer) {
+            mObject = object;
+            mBytes = buffer.toByteArray();
+        }
+
+        /**
+         * Creates serialized object without reference to the original object, so it is a snapshot
+         * of the object's state.
+         */
+        SerializedObject(ReusableBuffer buffer) {
+            this(null, buffer);
+        }
+
+        /**
+         * Gets the original object or its copy deserialized from serialized data.
+         */
+        Object getObject() {
+            return (mObject != null) ? mObject : bytesToObject(mBytes, DEFAULT_SERIALIZER);
+        }
     }
+
+    private static final OutputStream NULL_OUTPUT_STREAM = new OutputStream() {
+        @Override
+        public void write(int oneByte) {
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) {
+        }
+    };
 }
@@ -0,0 +1,89 @@
+/******************************************************************************
+ *
+ *  2015 (C) Copyright Open-RnD Sp. z o.o.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package pl.openrnd.utils;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Interface defining storage of serialized objects.
+ *
+ * @see pl.openrnd.utils.ObjectPreferences
+ * @see pl.openrnd.utils.MappedObjectStorage
+ */
+public interface ObjectStorage {
+
+    /**
+     * Gets stored object.
+     *
+     * @param name Key name under which the object is stored.
+     * @return Stored object or null if no object is stored.
+     * @throws IllegalStateException If stored object cannot be deserialized.
+     */
+    Object getObject(String name);
+
+    /**
+     * Stores object.
+     *
+     * @param name Key name under which the object will be stored.
+     * @param object Object to be stored. If object is null item under given name will be removed.
+     * @return True if succeed, false otherwise.
+     */
+    boolean putObject(String name, Object object);
+
+    /**
+     * Removes stored object.
+     *
+     * @param name Key name of object to removed.
+     * @return True if object was removed, false otherwise.
+     */
+    boolean removeObject(String name);
+
+    /**
+     * Gets stored objects.
+     *
+     * @param names Key names under which the objects are stored.
+     * @return Map of key names and stored objects, null values for not stored objects.
+     * @throws IllegalStateException If any stored object cannot be deserialized.
+     */
+    Map<String, Object> getObjects(Collection<String> names);
+
+    /**
+     * Stores objects as one transaction.
+     *
+     * @param objects Map of key names and objects to be stored. Items with null objects will be removed.
+     * @return True if succeed, false otherwise.
+     */
+    boolean putObjects(Map<String, ?> objects);
+
+    /**
+     * Removes stored objects as one transaction.
+     *
+     * @param names Key names of objects to removed.
+     * @return True if objects were removed, false otherwise.
+     */
+    boolean removeObjects(Collection<String> names);
+
+    /**
+     * Makes all writes durable before method returns.
+     *
+     * @return True if succeed, false otherwise.
+     */
+    boolean flushNow();
+}
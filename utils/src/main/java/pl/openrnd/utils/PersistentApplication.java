@@ -23,17 +23,120 @@ import android.app.Application;
 import android.os.Bundle;
 import android.util.Log;
 
-import java.io.Serializable;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * PersistentApplication is used to automatic save and restore all serialized objects
  * which have annotation @PersistentObject and are declared in Application class.
+ *
+ * Fields declared as LazyPersistentObject are not deserialized during onCreate(),
+ * their values are restored with the first access, see setLazyPrefetchEnabled().
+ *
+ * Objects can be serialized and written on a background thread, see setBackgroundSaveEnabled().
  */
 public abstract class PersistentApplication extends Application {
     private static final String TAG = PersistentApplication.class.getSimpleName();
 
-    private ObjectPreferences mObjectPreferences;
+    /**
+     * Defines which @PersistentObject fields are written with every save() call.
+     */
+    public enum SaveMode {
+        /**
+         * All fields are written.
+         */
+        FULL,
+        /**
+         * Field is written only if fingerprint of its serialized form changed since the last save.
+         * Every field is serialized with each save, serialized form of changed fields is reused for writing.
+         */
+        FINGERPRINT,
+        /**
+         * Field is written only if it was marked with markDirty() since the last save.
+         */
+        EXPLICIT
+    }
+
+    /**
+     * Defines how field values are captured for background save.
+     *
+     * Values implementing Snapshotable are always captured with their snapshot() method.
+     */
+    public enum SnapshotPolicy {
+        /**
+         * Field references are captured, objects must not be modified until they are written.
+         * Suitable for immutable objects.
+         */
+        REFERENCE,
+        /**
+         * Mutable objects are serialized with Java serialization on the thread calling save(),
+         * serialized data is the captured value. It costs about as much as writing the object,
+         * so large objects should implement Snapshotable instead.
+         *
+         * Serialized data is reused for fingerprints and for writing with JavaObjectSerializer,
+         * it is deserialized on the background thread only for other formats.
+         */
+        DEEP_COPY
+    }
+
+    /**
+     * Interface definition for a callback invoked when save() is finished.
+     */
+    public interface SaveListener {
+
+        /**
+         * Called when all fields captured by save() are written.
+         *
+         * Method is called on the thread writing the fields.
+         *
+         * @param mainThreadTime Time in nanoseconds spent on the thread calling save().
+         * @param backgroundTime Time in nanoseconds spent on the background thread, 0 if
+         *                       background save is disabled.
+         * @param writtenFieldsCount Number of written fields.
+         */
+        void onSaveFinished(long mainThreadTime, long backgroundTime, int writtenFieldsCount);
+    }
+
+    private static final Object NOT_LOADED = new Object();
+    private static final Object NOT_CHANGED = new Object();
+
+    private ObjectStorage mObjectStorage;
+
+    private volatile Field[] mFields;
+    private volatile String[] mFieldNames;
+    private volatile boolean[] mLazyFields;
+
+    private boolean mIsLazyPrefetchEnabled = false;
+    private boolean mIsFirstActivityResumed = false;
+
+    private volatile SaveMode mSaveMode = SaveMode.FULL;
+    private final Map<String, byte[]> mFingerprints = new HashMap<String, byte[]>();
+    private final Set<String> mDirtyFields = new HashSet<String>();
+    private final AtomicLong mWrittenFieldsCount = new AtomicLong();
+    private final AtomicLong mSkippedFieldsCount = new AtomicLong();
+
+    private volatile boolean mIsBackgroundSaveEnabled = false;
+    private volatile SnapshotPolicy mSnapshotPolicy = SnapshotPolicy.REFERENCE;
+    private volatile SaveListener mSaveListener;
+    private ExecutorService mSaveExecutor;
+    private final AtomicLong mSaveGeneration = new AtomicLong();
 
     @PersistentObject
     private String mAppVersion;
@@ -42,7 +145,8 @@ public abstract class PersistentApplication extends Application {
      * @see android.app.Application
      *
      * Method tries to restore application state and notifies about version changes.
-     * Restore state will fail if stored object class definition changed.
+     * Restore of a field will fail if stored object class definition changed. Such fields are
+     * removed from the storage and reported with onRestoreFailed(), other fields are kept.
      *
      * Please consider using database if stored objects definition is suppose to chenge with
      * version changes.
@@ -51,7 +155,7 @@ public abstract class PersistentApplication extends Application {
     public void onCreate() {
         super.onCreate();
 
-        mObjectPreferences = new ObjectPreferences(TAG, this);
+        mObjectStorage = createObjectStorage();
 
         registerActivityLifecycleCallbacks(mActivityLifecycleCallbacks);
 
@@ -68,10 +172,47 @@ public abstract class PersistentApplication extends Application {
         if ((appVersion == null) || !appVersion.equals(mAppVersion)) {
             String oldVersion = mAppVersion;
             mAppVersion = appVersion;
+            markDirty("mAppVersion");
             onVersionChanged(oldVersion, appVersion);
         }
     }
 
+    /**
+     * @see android.app.Application
+     *
+     * Pending writes are committed when application UI is hidden as the process may be killed.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+
+        if ((level >= TRIM_MEMORY_UI_HIDDEN) && (mObjectStorage != null)) {
+            if (mIsBackgroundSaveEnabled) {
+                //Flush after pending background saves
+                getSaveExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        mObjectStorage.flushNow();
+                    }
+                });
+            } else {
+                mObjectStorage.flushNow();
+            }
+        }
+    }
+
+    /**
+     * Creates ObjectStorage object used for storing @PersistentObject fields.
+     *
+     * Default implementation returns ObjectPreferences object. Override to configure storage,
+     * e.g. to enable write-behind mode or to use MappedObjectStorage.
+     *
+     * @return ObjectStorage object.
+     */
+    protected ObjectStorage createObjectStorage() {
+        return new ObjectPreferences(TAG, this);
+    }
+
     /**
      * Method called when version of the application changed.
      *
@@ -85,6 +226,19 @@ public abstract class PersistentApplication extends Application {
         Log.d(TAG, String.format("onVersionChanged(): old[%s], new[%s]", oldVersion, newVersion));
     }
 
+    /**
+     * Method called when some @PersistentObject fields could not be restored.
+     *
+     * Stored objects of the failed fields are already removed and the fields are left
+     * with their default values. For LazyPersistentObject fields method is called on the thread
+     * which accessed the field.
+     *
+     * @param names Key names of fields which failed to restore.
+     */
+    protected void onRestoreFailed(List<String> names) {
+        Log.w(TAG, String.format("onRestoreFailed(): names%s", names));
+    }
+
     /**
      * Gets current version name.
      *
@@ -92,50 +246,404 @@ public abstract class PersistentApplication extends Application {
      */
     public abstract String getVersion();
 
+    /**
+     * Gets number of threads used for restoring @PersistentObject fields in onCreate().
+     *
+     * Fields are deserialized concurrently and assigned when all of them are ready,
+     * before onVersionChanged() is called. Used ObjectStorage and objects' deserialization
+     * must be thread safe. Values lower than 2 mean serial restore on the main thread.
+     *
+     * @return Number of restore threads. Default is 1.
+     */
+    protected int getRestoreParallelism() {
+        return 1;
+    }
+
+    /**
+     * Sets mode used by save() for selecting fields to be written.
+     *
+     * @param saveMode SaveMode object. Default is SaveMode.FULL.
+     */
+    public void setSaveMode(SaveMode saveMode) {
+        mSaveMode = (saveMode == null) ? SaveMode.FULL : saveMode;
+    }
+
+    /**
+     * Gets mode used by save() for selecting fields to be written.
+     *
+     * @return Current SaveMode.
+     */
+    public SaveMode getSaveMode() {
+        return mSaveMode;
+    }
+
+    /**
+     * Marks field as changed so it is written with the next save() call.
+     *
+     * Required in SaveMode.EXPLICIT, in other modes it forces field to be written.
+     * If more fields in class hierarchy have the same name, all of them are marked.
+     *
+     * @param fieldName Declared name of the @PersistentObject field.
+     */
+    public void markDirty(String fieldName) {
+        Field[] fields = getPersistentFields();
+        String[] names = mFieldNames;
+
+        synchronized (mDirtyFields) {
+            for (int i = 0; i < fields.length; ++i) {
+                if (fields[i].getName().equals(fieldName)) {
+                    mDirtyFields.add(names[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Enables restoring all LazyPersistentObject fields on a background thread after the first
+     * frame of the first resumed Activity is drawn.
+     *
+     * @param enabled True to enable prefetch, false otherwise. Default is false.
+     */
+    public void setLazyPrefetchEnabled(boolean enabled) {
+        mIsLazyPrefetchEnabled = enabled;
+    }
+
+    /**
+     * Enables serializing and writing @PersistentObject fields on a background thread.
+     *
+     * save() only captures field values on the calling thread according to SnapshotPolicy,
+     * fields are written in the same order as save() calls. Used ObjectStorage must be thread safe.
+     *
+     * @param enabled True to enable background save, false otherwise. Default is false.
+     */
+    public void setBackgroundSaveEnabled(boolean enabled) {
+        mIsBackgroundSaveEnabled = enabled;
+    }
+
+    /**
+     * Checks if background save is enabled.
+     *
+     * @return True if background save is enabled, false otherwise.
+     */
+    public boolean isBackgroundSaveEnabled() {
+        return mIsBackgroundSaveEnabled;
+    }
+
+    /**
+     * Sets policy used for capturing field values for background save.
+     *
+     * @param snapshotPolicy SnapshotPolicy object. Default is SnapshotPolicy.REFERENCE.
+     */
+    public void setSnapshotPolicy(SnapshotPolicy snapshotPolicy) {
+        mSnapshotPolicy = (snapshotPolicy == null) ? SnapshotPolicy.REFERENCE : snapshotPolicy;
+    }
+
+    /**
+     * Gets policy used for capturing field values for background save.
+     *
+     * @return Current SnapshotPolicy.
+     */
+    public SnapshotPolicy getSnapshotPolicy() {
+        return mSnapshotPolicy;
+    }
+
+    /**
+     * Sets listener notified with save() timings.
+     *
+     * @param saveListener SaveListener object or null.
+     */
+    public void setSaveListener(SaveListener saveListener) {
+        mSaveListener = saveListener;
+    }
+
+    /**
+     * Gets number of fields written by save() calls.
+     *
+     * @return Number of written fields.
+     */
+    public long getWrittenFieldsCount() {
+        return mWrittenFieldsCount.get();
+    }
+
+    /**
+     * Gets number of fields skipped by save() calls as not changed.
+     *
+     * @return Number of skipped fields.
+     */
+    public long getSkippedFieldsCount() {
+        return mSkippedFieldsCount.get();
+    }
+
+    /**
+     * Resets written and skipped fields counters.
+     */
+    public void resetSaveCounters() {
+        mWrittenFieldsCount.set(0);
+        mSkippedFieldsCount.set(0);
+    }
+
     /**
      * Clears all data stored.
      */
     protected void clear() {
         Log.v(TAG, "clear()");
 
-        Class<?> clazz = getClass();
+        //Pending background saves are dropped
+        mSaveGeneration.incrementAndGet();
 
-        while (clazz != null) {
-            Field[] fields = clazz.getDeclaredFields();
-            for (Field field : fields) {
-                if (field.isAnnotationPresent(PersistentObject.class)) {
-                    field.setAccessible(true);
-                    mObjectPreferences.removeObject(getNameForField(field));
-                    field.setAccessible(false);
-                }
+        synchronized (mFingerprints) {
+            mFingerprints.clear();
+            synchronized (mDirtyFields) {
+                mDirtyFields.clear();
             }
-            clazz = clazz.getSuperclass();
+
+            mObjectStorage.removeObjects(Arrays.asList(getPersistentFieldNames()));
         }
     }
 
     /**
-     * Method save all object with annotation @PersistentObject to SharedPreferences
+     * Method save all object with annotation @PersistentObject to ObjectStorage
      */
     protected void save() {
         Log.v(TAG, "save()");
 
-        Class<?> clazz = getClass();
+        long startTime = System.nanoTime();
+        final boolean isBackground = mIsBackgroundSaveEnabled;
+        //Read before capturing, so values captured before clear() are never written
+        final long generation = mSaveGeneration.get();
 
-        while (clazz != null) {
-            Field[] fields = clazz.getDeclaredFields();
-            try {
-                for (Field field : fields) {
-                    if (field.isAnnotationPresent(PersistentObject.class)) {
-                        field.setAccessible(true);
-                        mObjectPreferences.putObject(getNameForField(field), (Serializable) field.get(this));
-                        field.setAccessible(false);
+        final Object[] values;
+        final Set<String> dirtyFields;
+        try {
+            values = captureValues(isBackground);
+        } catch (IllegalAccessException e) {
+            Log.e(TAG, "save object error", e);
+            return;
+        }
+        synchronized (mDirtyFields) {
+            dirtyFields = new HashSet<String>(mDirtyFields);
+            mDirtyFields.clear();
+        }
+
+        if (!isBackground) {
+            int writtenFieldsCount = writeValues(values, dirtyFields, generation);
+            notifySaveFinished(System.nanoTime() - startTime, 0, writtenFieldsCount);
+            return;
+        }
+
+        final long mainThreadTime = System.nanoTime() - startTime;
+        getSaveExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                long startTime = System.nanoTime();
+                int writtenFieldsCount;
+                synchronized (mFingerprints) {
+                    if (generation != mSaveGeneration.get()) {
+                        Log.d(TAG, "save(): dropped after clear()");
+                        return;
+                    }
+                    try {
+                        writtenFieldsCount = writeValues(values, dirtyFields, generation);
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "background save error", e);
+                        return;
                     }
                 }
-            } catch (IllegalAccessException e) {
-                Log.e(TAG, "save object error", e);
+                notifySaveFinished(mainThreadTime, System.nanoTime() - startTime, writtenFieldsCount);
+            }
+        });
+    }
+
+    /**
+     * Marks fields of a failed save as dirty again, so they are written with the next save.
+     *
+     * @param dirtyFields Names of fields marked as dirty when the save started.
+     * @param generation Save generation read when the save started.
+     */
+    private void restoreDirtyFields(Set<String> dirtyFields, long generation) {
+        synchronized (mDirtyFields) {
+            //Fields cleared meanwhile are not dirty
+            if (generation == mSaveGeneration.get()) {
+                mDirtyFields.addAll(dirtyFields);
+            }
+        }
+    }
+
+    /**
+     * Captures current values of @PersistentObject fields.
+     *
+     * @param isSnapshot True if values are captured for background save.
+     * @return Array of values under the same indexes as fields, NOT_LOADED for not accessed lazy fields.
+     */
+    private Object[] captureValues(boolean isSnapshot) throws IllegalAccessException {
+        Field[] fields = getPersistentFields();
+        boolean[] lazyFields = mLazyFields;
+
+        Object[] values = new Object[fields.length];
+        for (int i = 0; i < fields.length; ++i) {
+            Object value = fields[i].get(this);
+            if (lazyFields[i] && (value != null)) {
+                LazyPersistentObject<?> holder = (LazyPersistentObject<?>) value;
+                if (!holder.isLoaded()) {
+                    //Not accessed value is the same as the stored one
+                    values[i] = NOT_LOADED;
+                    continue;
+                }
+                value = holder.get();
             }
-            clazz = clazz.getSuperclass();
+
+            values[i] = isSnapshot ? snapshot(value) : value;
         }
+        return values;
+    }
+
+    private Object snapshot(Object value) {
+        if (value instanceof Snapshotable) {
+            return ((Snapshotable) value).snapshot();
+        }
+        if ((mSnapshotPolicy == SnapshotPolicy.DEEP_COPY) && !isImmutable(value)) {
+            ObjectSerializerUtils.ReusableBuffer buffer = ObjectSerializerUtils.serializeToBuffer(value);
+            try {
+                return new ObjectSerializerUtils.SerializedObject(buffer);
+            } finally {
+                ObjectSerializerUtils.recycleBuffer(buffer);
+            }
+        }
+        return value;
+    }
+
+    private static boolean isImmutable(Object value) {
+        return (value == null) || (value instanceof String) || (value instanceof Boolean) || (value instanceof Character)
+                || (value instanceof Integer) || (value instanceof Long) || (value instanceof Double) || (value instanceof Float)
+                || (value instanceof Short) || (value instanceof Byte) || (value instanceof Enum);
+    }
+
+    /**
+     * Writes captured values to ObjectStorage.
+     *
+     * @param values Values captured by captureValues().
+     * @param dirtyFields Key names of fields marked as dirty when values were captured.
+     * @param generation Save generation read before values were captured.
+     * @return Number of written fields.
+     */
+    private int writeValues(Object[] values, Set<String> dirtyFields, long generation) {
+        String[] names = getPersistentFieldNames();
+
+        Map<String, Object> objects = new HashMap<String, Object>();
+        boolean isWritten = false;
+        synchronized (mFingerprints) {
+            for (int i = 0; i < values.length; ++i) {
+                String name = names[i];
+                Object value = values[i];
+                if (value == NOT_LOADED) {
+                    mSkippedFieldsCount.incrementAndGet();
+                    continue;
+                }
+
+                value = getValueToWrite(name, value, dirtyFields.contains(name));
+                if (value != NOT_CHANGED) {
+                    objects.put(name, value);
+                } else {
+                    mSkippedFieldsCount.incrementAndGet();
+                }
+            }
+
+            //All fields are written with a single transaction
+            try {
+                isWritten = objects.isEmpty() || mObjectStorage.putObjects(objects);
+            } finally {
+                if (!isWritten) {
+                    mFingerprints.keySet().removeAll(objects.keySet());
+                    restoreDirtyFields(dirtyFields, generation);
+                }
+            }
+        }
+        if (!isWritten) {
+            return 0;
+        }
+        mWrittenFieldsCount.addAndGet(objects.size());
+        return objects.size();
+    }
+
+    private void notifySaveFinished(long mainThreadTime, long backgroundTime, int writtenFieldsCount) {
+        SaveListener saveListener = mSaveListener;
+        if (saveListener != null) {
+            saveListener.onSaveFinished(mainThreadTime, backgroundTime, writtenFieldsCount);
+        }
+    }
+
+    private synchronized ExecutorService getSaveExecutor() {
+        if (mSaveExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), mSaveThreadFactory);
+            executor.allowCoreThreadTimeOut(true);
+            mSaveExecutor = executor;
+        }
+        return mSaveExecutor;
+    }
+
+    /**
+     * Gets value of the field to be written according to current SaveMode.
+     *
+     * In SaveMode.FINGERPRINT value is serialized once, fingerprint of serialized data is remembered
+     * as the last saved one and serialized data is returned, so ObjectPreferences and MappedObjectStorage
+     * write it without serializing the value again.
+     *
+     * @param name Key name of the field.
+     * @param value Current field value.
+     * @param dirty True if field was marked with markDirty().
+     * @return Value to be written or NOT_CHANGED if field does not have to be written.
+     */
+    private Object getValueToWrite(String name, Object value, boolean dirty) {
+        switch (mSaveMode) {
+            case FINGERPRINT:
+                if (value == null) {
+                    return isFingerprintChanged(name, null, dirty) ? null : NOT_CHANGED;
+                }
+                if (value instanceof ObjectSerializerUtils.SerializedObject) {
+                    byte[] fingerprint = ObjectSerializerUtils.fingerprint((ObjectSerializerUtils.SerializedObject) value);
+                    return isFingerprintChanged(name, fingerprint, dirty) ? toStoredValue(value) : NOT_CHANGED;
+                }
+
+                ObjectSerializerUtils.ReusableBuffer buffer = ObjectSerializerUtils.serializeToBuffer(value);
+                try {
+                    if (!isFingerprintChanged(name, ObjectSerializerUtils.fingerprint(buffer), dirty)) {
+                        return NOT_CHANGED;
+                    }
+                    return isSerializedObjectSupported() ? new ObjectSerializerUtils.SerializedObject(value, buffer) : value;
+                } finally {
+                    ObjectSerializerUtils.recycleBuffer(buffer);
+                }
+            case EXPLICIT:
+                return dirty ? toStoredValue(value) : NOT_CHANGED;
+            default:
+                return toStoredValue(value);
+        }
+    }
+
+    /**
+     * Checks if fingerprint differs from the last saved one and remembers it as the last saved one.
+     */
+    private boolean isFingerprintChanged(String name, byte[] fingerprint, boolean dirty) {
+        if (!dirty && mFingerprints.containsKey(name) && Arrays.equals(fingerprint, mFingerprints.get(name))) {
+            return false;
+        }
+        mFingerprints.put(name, fingerprint);
+        return true;
+    }
+
+    /**
+     * Unwraps serialized value if it cannot be passed to used ObjectStorage.
+     */
+    private Object toStoredValue(Object value) {
+        if ((value instanceof ObjectSerializerUtils.SerializedObject) && !isSerializedObjectSupported()) {
+            return ((ObjectSerializerUtils.SerializedObject) value).getObject();
+        }
+        return value;
+    }
+
+    private boolean isSerializedObjectSupported() {
+        return (mObjectStorage instanceof ObjectPreferences) || (mObjectStorage instanceof MappedObjectStorage);
     }
 
     /**
@@ -144,25 +652,209 @@ public abstract class PersistentApplication extends Application {
     protected void restore() {
         Log.v(TAG, "restore()");
 
-        Class<?> clazz = getClass();
+        Field[] fields = getPersistentFields();
+        String[] names = mFieldNames;
 
-        while (clazz != null) {
-            Field[] fields = clazz.getDeclaredFields();
+        boolean[] lazyFields = mLazyFields;
+
+        int eagerFieldsCount = 0;
+        for (boolean lazyField : lazyFields) {
+            eagerFieldsCount += lazyField ? 0 : 1;
+        }
+
+        int parallelism = Math.min(getRestoreParallelism(), eagerFieldsCount);
+        if (parallelism > 1) {
             try {
-                for (Field field : fields) {
-                    if (field.isAnnotationPresent(PersistentObject.class)) {
-                        field.setAccessible(true);
-                        field.set(this, mObjectPreferences.getObject(getNameForField(field)));
-                        field.setAccessible(false);
-                    }
+                restoreParallel(parallelism);
+                return;
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG, "parallel restore rejected, restoring serially", e);
+            }
+        }
+
+        List<String> failedNames = new ArrayList<String>();
+        for (int i = 0; i < fields.length; ++i) {
+            try {
+                if (lazyFields[i]) {
+                    fields[i].set(this, new LazyPersistentObject<Object>(mObjectStorage, names[i], mRestoreErrorHandler));
+                } else {
+                    fields[i].set(this, mObjectStorage.getObject(names[i]));
                 }
             } catch (IllegalAccessException e) {
                 Log.e(TAG, "restore object error", e);
+            } catch (RuntimeException e) {
+                removeBrokenField(names[i], e);
+                failedNames.add(names[i]);
             }
-            clazz = clazz.getSuperclass();
+        }
+
+        if (!failedNames.isEmpty()) {
+            onRestoreFailed(failedNames);
         }
     }
 
+    /**
+     * Deserializes eager fields concurrently and assigns all fields when the restore is finished.
+     *
+     * @param parallelism Number of restore threads.
+     */
+    private void restoreParallel(int parallelism) {
+        Field[] fields = getPersistentFields();
+        String[] names = mFieldNames;
+        boolean[] lazyFields = mLazyFields;
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, mRestoreThreadFactory);
+        try {
+            List<Future<Object>> results = new ArrayList<Future<Object>>(fields.length);
+            for (int i = 0; i < fields.length; ++i) {
+                if (lazyFields[i]) {
+                    results.add(null);
+                } else {
+                    final String name = names[i];
+                    results.add(executor.submit(new Callable<Object>() {
+                        @Override
+                        public Object call() throws Exception {
+                            return mObjectStorage.getObject(name);
+                        }
+                    }));
+                }
+            }
+
+            List<String> failedNames = new ArrayList<String>();
+            for (int i = 0; i < fields.length; ++i) {
+                try {
+                    if (lazyFields[i]) {
+                        fields[i].set(this, new LazyPersistentObject<Object>(mObjectStorage, names[i], mRestoreErrorHandler));
+                    } else {
+                        fields[i].set(this, results.get(i).get());
+                    }
+                } catch (IllegalAccessException e) {
+                    Log.e(TAG, "restore object error", e);
+                } catch (ExecutionException e) {
+                    //Errors, e.g. OutOfMemoryError, are not caused by stored data, same as in serial restore
+                    if (e.getCause() instanceof Error) {
+                        throw (Error) e.getCause();
+                    }
+                    removeBrokenField(names[i], e.getCause());
+                    failedNames.add(names[i]);
+                } catch (RuntimeException e) {
+                    removeBrokenField(names[i], e);
+                    failedNames.add(names[i]);
+                }
+            }
+
+            if (!failedNames.isEmpty()) {
+                onRestoreFailed(failedNames);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Removes stored object which cannot be restored.
+     *
+     * @param name Key name of the field.
+     * @param error Restore error.
+     */
+    private void removeBrokenField(String name, Throwable error) {
+        Log.e(TAG, String.format("restore object error: name[%s]", name), error);
+
+        try {
+            mObjectStorage.removeObject(name);
+        } catch (RuntimeException e) {
+            Log.e(TAG, String.format("remove object error: name[%s]", name), e);
+        }
+    }
+
+    private final LazyPersistentObject.RestoreErrorHandler mRestoreErrorHandler = new LazyPersistentObject.RestoreErrorHandler() {
+        @Override
+        public void onRestoreError(String name, RuntimeException error) {
+            removeBrokenField(name, error);
+
+            List<String> failedNames = new ArrayList<String>();
+            failedNames.add(name);
+            onRestoreFailed(failedNames);
+        }
+    };
+
+    private final ThreadFactory mRestoreThreadFactory = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, String.format("%s-restore", TAG));
+        }
+    };
+
+    private final ThreadFactory mSaveThreadFactory = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, String.format("%s-save", TAG));
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    };
+
+    /**
+     * Gets all @PersistentObject fields declared in application class hierarchy.
+     *
+     * Fields and their key names are resolved only once, key names are available
+     * in mFieldNames array and lazy restore flags in mLazyFields array under the same indexes.
+     *
+     * @return Array of accessible fields.
+     */
+    private Field[] getPersistentFields() {
+        Field[] fields = mFields;
+        if (fields == null) {
+            fields = PersistentFields.get(getClass(), true);
+
+            String[] names = new String[fields.length];
+            boolean[] lazyFields = new boolean[fields.length];
+            for (int i = 0; i < fields.length; ++i) {
+                names[i] = getNameForField(fields[i]);
+                lazyFields[i] = LazyPersistentObject.class.isAssignableFrom(fields[i].getType());
+            }
+
+            mFieldNames = names;
+            mLazyFields = lazyFields;
+            mFields = fields;
+        }
+        return fields;
+    }
+
+    /**
+     * Restores all not yet accessed LazyPersistentObject fields on a background thread.
+     */
+    private void prefetchLazyFields() {
+        final Field[] fields = getPersistentFields();
+        final boolean[] lazyFields = mLazyFields;
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < fields.length; ++i) {
+                        Object holder = lazyFields[i] ? fields[i].get(PersistentApplication.this) : null;
+                        if (holder != null) {
+                            ((LazyPersistentObject<?>) holder).get();
+                        }
+                    }
+                } catch (Exception e) {
+                    Log.e(TAG, "prefetch object error", e);
+                }
+            }
+        }, String.format("%s-prefetch", TAG));
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    private String[] getPersistentFieldNames() {
+        getPersistentFields();
+        return mFieldNames;
+    }
+
     private ActivityLifecycleCallbacks mActivityLifecycleCallbacks = new ActivityLifecycleCallbacks() {
 
         @Override
@@ -177,7 +869,19 @@ public abstract class PersistentApplication extends Application {
 
         @Override
         public void onActivityResumed(Activity activity) {
-
+            if (!mIsFirstActivityResumed) {
+                mIsFirstActivityResumed = true;
+
+                if (mIsLazyPrefetchEnabled) {
+                    //Runnables posted before the view is attached are executed after the first traversal
+                    activity.getWindow().getDecorView().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            prefetchLazyFields();
+                        }
+                    });
+                }
+            }
         }
 
         @Override
@@ -0,0 +1,75 @@
+/******************************************************************************
+ *
+ *  2015 (C) Copyright Open-RnD Sp. z o.o.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package pl.openrnd.utils;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of fields with annotation @PersistentObject.
+ *
+ * Class hierarchy is scanned only once per class, returned fields are already accessible.
+ * Returned arrays are shared and must not be modified.
+ */
+final class PersistentFields {
+
+    private static final Map<Class<?>, Field[]> sDeclaredFields = new ConcurrentHashMap<Class<?>, Field[]>();
+    private static final Map<Class<?>, Field[]> sHierarchyFields = new ConcurrentHashMap<Class<?>, Field[]>();
+
+    private PersistentFields() {}
+
+    /**
+     * Gets @PersistentObject fields of provided class.
+     *
+     * @param clazz Class to be scanned.
+     * @param withSuperclasses If true fields declared in superclasses are included. Fields of
+     *                         the most derived class come first.
+     * @return Array of accessible fields.
+     */
+    static Field[] get(Class<?> clazz, boolean withSuperclasses) {
+        Map<Class<?>, Field[]> cache = withSuperclasses ? sHierarchyFields : sDeclaredFields;
+
+        Field[] result = cache.get(clazz);
+        if (result == null) {
+            result = scan(clazz, withSuperclasses);
+            cache.put(clazz, result);
+        }
+
+        return result;
+    }
+
+    private static Field[] scan(Class<?> clazz, boolean withSuperclasses) {
+        List<Field> result = new ArrayList<Field>();
+
+        while (clazz != null) {
+            for (Field field : clazz.getDeclaredFields()) {
+                if (field.isAnnotationPresent(PersistentObject.class)) {
+                    field.setAccessible(true);
+                    result.add(field);
+                }
+            }
+            clazz = withSuperclasses ? clazz.getSuperclass() : null;
+        }
+
+        return result.toArray(new Field[result.size()]);
+    }
+}
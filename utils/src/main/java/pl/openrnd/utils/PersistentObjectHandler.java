@@ -22,10 +22,19 @@ import android.os.Bundle;
 
 import java.io.Serializable;
 import java.lang.reflect.Field;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Helper class for storing @PersistentObject fields in Bundle.
+ *
+ * Key names are resolved once per class, so a single handler instance should be reused.
+ */
 public class PersistentObjectHandler {
     private static final String TAG = PersistentObjectHandler.class.getSimpleName();
 
+    private final Map<Class<?>, String[]> mFieldNames = new ConcurrentHashMap<Class<?>, String[]>();
+
     /**
      * Method find all declared field with annotation @PersistentObject in object and add them to bundle
      *
@@ -33,15 +42,12 @@ public class PersistentObjectHandler {
      * @param bundle Bundle object to be used for storing data.
      */
     public void save(Object object, Bundle bundle) {
-        Field[] fields = object.getClass().getDeclaredFields();
+        Field[] fields = PersistentFields.get(object.getClass(), false);
+        String[] names = getFieldNames(object.getClass(), fields);
 
         try {
-            for (Field field : fields) {
-                if (field.isAnnotationPresent(PersistentObject.class)) {
-                    field.setAccessible(true);
-                    bundle.putSerializable(getNameForField(field), (Serializable) field.get(object));
-                    field.setAccessible(false);
-                }
+            for (int i = 0; i < fields.length; ++i) {
+                bundle.putSerializable(names[i], (Serializable) fields[i].get(object));
             }
         } catch (IllegalAccessException e) {
             e.printStackTrace();
@@ -55,21 +61,30 @@ public class PersistentObjectHandler {
      * @param bundle Bundle object from which data has to be restored.
      */
     public void restore(Object object, Bundle bundle) {
-        Field[] fields = object.getClass().getDeclaredFields();
+        Field[] fields = PersistentFields.get(object.getClass(), false);
+        String[] names = getFieldNames(object.getClass(), fields);
 
         try {
-            for (Field field : fields) {
-                if (field.isAnnotationPresent(PersistentObject.class)) {
-                    field.setAccessible(true);
-                    field.set(object, bundle.getSerializable(getNameForField(field)));
-                    field.setAccessible(false);
-                }
+            for (int i = 0; i < fields.length; ++i) {
+                fields[i].set(object, bundle.getSerializable(names[i]));
             }
         } catch (IllegalAccessException e) {
             e.printStackTrace();
         }
     }
 
+    private String[] getFieldNames(Class<?> clazz, Field[] fields) {
+        String[] result = mFieldNames.get(clazz);
+        if (result == null) {
+            result = new String[fields.length];
+            for (int i = 0; i < fields.length; ++i) {
+                result[i] = getNameForField(fields[i]);
+            }
+            mFieldNames.put(clazz, result);
+        }
+        return result;
+    }
+
     /**
      * Creates a key name for a class filed.
      *
@@ -0,0 +1,124 @@
+/******************************************************************************
+ *
+ *  2015 (C) Copyright Open-RnD Sp. z o.o.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package pl.openrnd.utils;
+
+/**
+ * Statistics of objects' serialization under a single key.
+ *
+ * @see pl.openrnd.utils.ObjectPreferences#setStatsEnabled(boolean)
+ */
+public class SerializationStats {
+
+    private long mEncodeCount;
+    private long mDecodeCount;
+    private long mEncodeTime;
+    private long mDecodeTime;
+    private long mTotalSerializedBytes;
+    private long mTotalStoredBytes;
+    private int mSerializedBytes;
+    private int mStoredBytes;
+
+    SerializationStats() {
+    }
+
+    private SerializationStats(SerializationStats source) {
+        mEncodeCount = source.mEncodeCount;
+        mDecodeCount = source.mDecodeCount;
+        mEncodeTime = source.mEncodeTime;
+        mDecodeTime = source.mDecodeTime;
+        mTotalSerializedBytes = source.mTotalSerializedBytes;
+        mTotalStoredBytes = source.mTotalStoredBytes;
+        mSerializedBytes = source.mSerializedBytes;
+        mStoredBytes = source.mStoredBytes;
+    }
+
+    synchronized void onEncode(int serializedBytes, int storedBytes, long time) {
+        ++mEncodeCount;
+        mEncodeTime += time;
+        mTotalSerializedBytes += serializedBytes;
+        mTotalStoredBytes += storedBytes;
+        mSerializedBytes = serializedBytes;
+        mStoredBytes = storedBytes;
+    }
+
+    synchronized void onDecode(long time) {
+        ++mDecodeCount;
+        mDecodeTime += time;
+    }
+
+    synchronized SerializationStats copy() {
+        return new SerializationStats(this);
+    }
+
+    /**
+     * @return Number of encoded objects.
+     */
+    public synchronized long getEncodeCount() {
+        return mEncodeCount;
+    }
+
+    /**
+     * @return Number of decoded objects.
+     */
+    public synchronized long getDecodeCount() {
+        return mDecodeCount;
+    }
+
+    /**
+     * @return Average time of object's encoding in nanoseconds.
+     */
+    public synchronized long getAverageEncodeTime() {
+        return (mEncodeCount == 0) ? 0 : mEncodeTime / mEncodeCount;
+    }
+
+    /**
+     * @return Average time of object's decoding in nanoseconds.
+     */
+    public synchronized long getAverageDecodeTime() {
+        return (mDecodeCount == 0) ? 0 : mDecodeTime / mDecodeCount;
+    }
+
+    /**
+     * @return Size of the last encoded object's serialized form in bytes.
+     */
+    public synchronized int getSerializedBytes() {
+        return mSerializedBytes;
+    }
+
+    /**
+     * @return Size of the last encoded object's stored (possibly compressed) form in bytes.
+     */
+    public synchronized int getStoredBytes() {
+        return mStoredBytes;
+    }
+
+    /**
+     * @return Ratio of stored and serialized bytes of all encoded objects, 1 if nothing was compressed.
+     */
+    public synchronized float getCompressionRatio() {
+        return (mTotalSerializedBytes == 0) ? 1 : (float) mTotalStoredBytes / mTotalSerializedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("encodes[%d], decodes[%d], encodeTime[%d], decodeTime[%d], serialized[%d], stored[%d], ratio[%.2f]",
+                mEncodeCount, mDecodeCount, getAverageEncodeTime(), getAverageDecodeTime(),
+                mSerializedBytes, mStoredBytes, getCompressionRatio());
+    }
+}
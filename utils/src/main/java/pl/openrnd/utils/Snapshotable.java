@@ -0,0 +1,39 @@
+/******************************************************************************
+ *
+ *  2015 (C) Copyright Open-RnD Sp. z o.o.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package pl.openrnd.utils;
+
+/**
+ * Interface of @PersistentObject values which provide their own snapshot for background save.
+ *
+ * Implement it in mutable objects which can create a consistent copy cheaper than a deep copy,
+ * e.g. copy-on-write wrappers returning current immutable state.
+ *
+ * @see PersistentApplication#setBackgroundSaveEnabled(boolean)
+ */
+public interface Snapshotable {
+
+    /**
+     * Creates snapshot of the object which is serialized instead of the object.
+     *
+     * Method is called on the thread calling save(), returned object must not be modified later.
+     *
+     * @return Serializable object with the current state.
+     */
+    Object snapshot();
+}
@@ -21,11 +21,23 @@ package pl.openrnd.utils;
 import android.os.Handler;
 import android.os.Looper;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
 /**
  * Handler connected to application's main Looper.
+ *
+ * UiHandler is also an Executor, so it can be used as a dispatch target of ObjectListenerHandler.
  */
-public class UiHandler extends Handler {
+public class UiHandler extends Handler implements Executor {
     public UiHandler() {
         super(Looper.getMainLooper());
     }
+
+    @Override
+    public void execute(Runnable runnable) {
+        if (!post(runnable)) {
+            throw new RejectedExecutionException("Main looper is exiting");
+        }
+    }
 }
@@ -0,0 +1,140 @@
+/******************************************************************************
+ *
+ *  2015 (C) Copyright Open-RnD Sp. z o.o.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package pl.openrnd.utils;
+
+import android.os.Build;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class EncryptedObjectSerializerTest {
+
+    private EncryptedObjectSerializer.KeyProvider mKeyProvider;
+    private EncryptedObjectSerializer mSerializer;
+
+    @Before
+    public void setUp() throws Exception {
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(128);
+        final SecretKey key = keyGenerator.generateKey();
+
+        mKeyProvider = new EncryptedObjectSerializer.KeyProvider() {
+            @Override
+            public SecretKey getKey() throws GeneralSecurityException {
+                return key;
+            }
+        };
+        //Build.VERSION.SDK_INT is not set in local unit tests
+        mSerializer = new EncryptedObjectSerializer(new JavaObjectSerializer(), mKeyProvider, Build.VERSION_CODES.KITKAT);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testOldApiLevelIsRejected() {
+        new EncryptedObjectSerializer(new JavaObjectSerializer(), mKeyProvider, Build.VERSION_CODES.KITKAT - 1);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        ArrayList<String> object = new ArrayList<String>(Arrays.asList("first", "second", "third"));
+
+        Object result = mSerializer.deserialize(new ByteArrayInputStream(serialize(object)));
+
+        assertEquals(object, result);
+    }
+
+    @Test
+    public void testIvIsNotReused() throws IOException {
+        byte[] first = serialize("value");
+        byte[] second = serialize("value");
+
+        assertFalse(Arrays.equals(first, second));
+    }
+
+    @Test
+    public void testModifiedDataIsRejected() throws IOException {
+        byte[] data = serialize("value");
+        //Flip a bit of the last ciphertext byte, preceding the authentication tag
+        data[data.length - 17] ^= 1;
+
+        try {
+            mSerializer.deserialize(new ByteArrayInputStream(data));
+            fail("Modified data deserialized");
+        } catch (IOException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void testTruncatedDataIsRejected() throws IOException {
+        byte[] data = serialize("value");
+
+        try {
+            mSerializer.deserialize(new ByteArrayInputStream(Arrays.copyOf(data, data.length - 1)));
+            fail("Truncated data deserialized");
+        } catch (IOException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void testKeyBoundRoundTrip() throws IOException {
+        byte[] data = serialize(mSerializer.forKey("first"), "value");
+
+        assertEquals("value", mSerializer.forKey("first").deserialize(new ByteArrayInputStream(data)));
+    }
+
+    @Test
+    public void testDataOfAnotherKeyIsRejected() throws IOException {
+        byte[] data = serialize(mSerializer.forKey("first"), "value");
+
+        EncryptedObjectSerializer[] serializers = new EncryptedObjectSerializer[] {mSerializer.forKey("second"), mSerializer};
+        for (EncryptedObjectSerializer serializer : serializers) {
+            try {
+                serializer.deserialize(new ByteArrayInputStream(data));
+                fail("Data of another key deserialized");
+            } catch (IOException e) {
+                //expected
+            }
+        }
+    }
+
+    private byte[] serialize(Object object) throws IOException {
+        return serialize(mSerializer, object);
+    }
+
+    private static byte[] serialize(EncryptedObjectSerializer serializer, Object object) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        serializer.serialize(object, outputStream);
+        return outputStream.toByteArray();
+    }
+}
@@ -0,0 +1,71 @@
+/******************************************************************************
+ *
+ *  2015 (C) Copyright Open-RnD Sp. z o.o.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package pl.openrnd.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LocationBatchTest {
+
+    @Test
+    public void testOverflowKeepsNewestFixes() {
+        LocationBatch batch = new LocationBatch(3);
+        for (int i = 1; i <= 5; i++) {
+            batch.add(i, -i, i * 10, i * 1000);
+        }
+
+        assertTrue(batch.isFull());
+        assertEquals(3, batch.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i + 3, (long) batch.getLatitude(i));
+            assertEquals(-(i + 3), (long) batch.getLongitude(i));
+            assertEquals((i + 3) * 10, (long) batch.getAccuracy(i));
+            assertEquals((i + 3) * 1000, batch.getTime(i));
+        }
+
+        LocationBatch copy = batch.copy();
+        assertEquals(3, copy.capacity());
+        assertEquals(3000, copy.getTime(0));
+        assertEquals(5000, copy.getTime(2));
+    }
+
+    @Test
+    public void testClear() {
+        LocationBatch batch = new LocationBatch(2);
+        batch.add(1, 1, 1, 1000);
+        batch.clear();
+
+        assertTrue(batch.isEmpty());
+        assertNull(batch.copy());
+        batch.add(2, 2, 2, 2000);
+        assertEquals(1, batch.size());
+        assertEquals(2000, batch.getTime(0));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testIndexOutOfBounds() {
+        LocationBatch batch = new LocationBatch(2);
+        batch.add(1, 1, 1, 1000);
+        batch.getTime(1);
+    }
+}
@@ -0,0 +1,121 @@
+/******************************************************************************
+ *
+ *  2015 (C) Copyright Open-RnD Sp. z o.o.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package pl.openrnd.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LocationBatcherTest {
+
+    private static final int CAPACITY = 3;
+    private static final long MAX_LATENCY = 60000;
+    private static final long LATE_FIX_AGE = 5000;
+
+    /**
+     * Batcher which records scheduled flushes instead of posting them.
+     */
+    private static class RecordingBatcher extends LocationBatcher {
+        private final List<Long> mDelays = new ArrayList<Long>();
+        private int mCancelCount;
+
+        private RecordingBatcher() {
+            super(CAPACITY, MAX_LATENCY, LATE_FIX_AGE);
+        }
+
+        @Override
+        void scheduleFlush(long delay) {
+            mDelays.add(delay);
+        }
+
+        @Override
+        void cancelFlush() {
+            mCancelCount++;
+        }
+
+        private boolean add(long fixTime, long now) {
+            return add(0, 0, 0, fixTime, fixTime, now);
+        }
+    }
+
+    private RecordingBatcher mBatcher;
+
+    @Before
+    public void setUp() {
+        mBatcher = new RecordingBatcher();
+    }
+
+    @Test
+    public void testFlushScheduledAtMaxLatency() {
+        assertFalse(mBatcher.add(10000, 10000));
+        assertFalse(mBatcher.add(12000, 12000));
+
+        assertEquals(Arrays.asList(MAX_LATENCY), mBatcher.mDelays);
+    }
+
+    @Test
+    public void testLatencyMeasuredFromOldestFix() {
+        //Fix delivered 2 seconds after it was taken waits only for the rest of the latency
+        assertFalse(mBatcher.add(10000, 12000));
+        //Older fix delivered out of order brings the flush forward
+        assertFalse(mBatcher.add(9000, 12500));
+
+        assertEquals(Arrays.asList(MAX_LATENCY - 2000, MAX_LATENCY - 3500), mBatcher.mDelays);
+
+        mBatcher.setMaxLatency(20000, 15000);
+        assertEquals(Long.valueOf(9000 + 20000 - 15000), mBatcher.mDelays.get(2));
+    }
+
+    @Test
+    public void testLateFixesDeliveredAfterBurst() {
+        //Fixes held by the provider come in a burst, the batch waits only for the end of the burst
+        assertFalse(mBatcher.add(10000, 10000 + LATE_FIX_AGE + 1));
+        assertEquals(Arrays.asList(LocationBatcher.BURST_END_DELAY), mBatcher.mDelays);
+
+        //Fix older than the max latency is delivered at once
+        assertTrue(mBatcher.add(20000, 20000 + MAX_LATENCY + LocationBatcher.BURST_END_DELAY));
+    }
+
+    @Test
+    public void testFullBatchDelivered() {
+        assertFalse(mBatcher.add(10000, 10000));
+        assertFalse(mBatcher.add(11000, 11000));
+        assertTrue(mBatcher.add(12000, 12000));
+
+        LocationBatch batch = mBatcher.flush();
+        assertEquals(1, mBatcher.mCancelCount);
+        assertEquals(CAPACITY, batch.size());
+        assertEquals(10000, batch.getTime(0));
+        assertEquals(12000, batch.getTime(2));
+
+        assertNull(mBatcher.flush());
+        //Next fix starts a new batch
+        assertFalse(mBatcher.add(13000, 13000));
+        assertEquals(Long.valueOf(MAX_LATENCY), mBatcher.mDelays.get(mBatcher.mDelays.size() - 1));
+    }
+}
@@ -0,0 +1,149 @@
+/******************************************************************************
+ *
+ *  2015 (C) Copyright Open-RnD Sp. z o.o.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package pl.openrnd.utils;
+
+import com.google.android.gms.location.LocationRequest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LocationSchedulerTest {
+
+    private static final long INTERVAL = 15000;
+    private static final long FAST_INTERVAL = 5000;
+    private static final int SMALLEST_DISPLACEMENT = 0;
+    private static final long NOW = 100000;
+
+    private LocationScheduler mScheduler;
+    private final Object mFirstListener = new Object();
+    private final Object mSecondListener = new Object();
+
+    @Before
+    public void setUp() {
+        mScheduler = new LocationScheduler(INTERVAL, FAST_INTERVAL, LocationRequest.PRIORITY_HIGH_ACCURACY, SMALLEST_DISPLACEMENT);
+    }
+
+    @Test
+    public void testDefaultsWithoutDemands() {
+        assertTrue(mScheduler.update(1, 0, NOW));
+
+        assertEquals(INTERVAL, mScheduler.getInterval());
+        assertEquals(FAST_INTERVAL, mScheduler.getFastInterval());
+        assertEquals(LocationRequest.PRIORITY_HIGH_ACCURACY, mScheduler.getPriority());
+        assertEquals(SMALLEST_DISPLACEMENT, mScheduler.getSmallestDisplacement());
+        assertFalse(mScheduler.update(1, 0, NOW));
+    }
+
+    @Test
+    public void testStrictestDemandSelected() {
+        mScheduler.setDemand(mFirstListener, 60000, LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY);
+        mScheduler.setDemand(mSecondListener, 30000, LocationRequest.PRIORITY_LOW_POWER);
+        mScheduler.update(2, 0, NOW);
+
+        assertEquals(30000, mScheduler.getInterval());
+        assertEquals(10000, mScheduler.getFastInterval());
+        assertEquals(LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY, mScheduler.getPriority());
+
+        //Listener without demand uses default parameters
+        mScheduler.update(3, 0, NOW);
+        assertEquals(INTERVAL, mScheduler.getInterval());
+        assertEquals(LocationRequest.PRIORITY_HIGH_ACCURACY, mScheduler.getPriority());
+
+        mScheduler.removeDemand(mSecondListener);
+        mScheduler.update(1, 0, NOW);
+        assertEquals(60000, mScheduler.getInterval());
+        assertEquals(LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY, mScheduler.getPriority());
+    }
+
+    @Test
+    public void testSmallIntervalChangeIgnored() {
+        mScheduler.setDemand(mFirstListener, 40000, LocationRequest.PRIORITY_HIGH_ACCURACY);
+        assertTrue(mScheduler.update(1, 0, NOW));
+
+        mScheduler.setDemand(mFirstListener, 45000, LocationRequest.PRIORITY_HIGH_ACCURACY);
+        assertFalse(mScheduler.update(1, 0, NOW));
+        assertEquals(40000, mScheduler.getInterval());
+
+        assertTrue(mScheduler.update(1, 60000, NOW));
+        assertEquals(45000, mScheduler.getInterval());
+        assertEquals(60000, mScheduler.getMaxWaitTime());
+    }
+
+    @Test
+    public void testStationaryRelaxesDefaults() {
+        mScheduler.setAdaptive(true);
+        mScheduler.setSpeed(0, NOW);
+
+        mScheduler.update(1, 0, NOW + LocationScheduler.STATIONARY_DELAY - 1);
+        assertEquals(INTERVAL, mScheduler.getInterval());
+
+        mScheduler.update(1, 0, NOW + LocationScheduler.STATIONARY_DELAY);
+        assertEquals(LocationScheduler.STATIONARY_INTERVAL, mScheduler.getInterval());
+        assertEquals(LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY, mScheduler.getPriority());
+        assertEquals(LocationScheduler.STATIONARY_SMALLEST_DISPLACEMENT, mScheduler.getSmallestDisplacement());
+
+        //Movement restores defaults
+        mScheduler.setSpeed(10, NOW + LocationScheduler.STATIONARY_DELAY);
+        mScheduler.update(1, 0, NOW + LocationScheduler.STATIONARY_DELAY);
+        assertEquals(INTERVAL, mScheduler.getInterval());
+        assertEquals(LocationRequest.PRIORITY_HIGH_ACCURACY, mScheduler.getPriority());
+    }
+
+    @Test
+    public void testStationaryDoesNotRelaxDemands() {
+        mScheduler.setAdaptive(true);
+        mScheduler.setSpeed(0, NOW);
+        mScheduler.setDemand(mFirstListener, 10000, LocationRequest.PRIORITY_HIGH_ACCURACY);
+
+        mScheduler.update(1, 0, NOW + LocationScheduler.STATIONARY_DELAY);
+        assertEquals(10000, mScheduler.getInterval());
+        assertEquals(LocationRequest.PRIORITY_HIGH_ACCURACY, mScheduler.getPriority());
+        assertEquals(SMALLEST_DISPLACEMENT, mScheduler.getSmallestDisplacement());
+
+        //Relaxed defaults of other listener do not relax the demand either
+        mScheduler.update(2, 0, NOW + LocationScheduler.STATIONARY_DELAY);
+        assertEquals(10000, mScheduler.getInterval());
+        assertEquals(LocationRequest.PRIORITY_HIGH_ACCURACY, mScheduler.getPriority());
+        assertEquals(SMALLEST_DISPLACEMENT, mScheduler.getSmallestDisplacement());
+    }
+
+    @Test
+    public void testMovingIntervalFollowsSpeed() {
+        mScheduler.setAdaptive(true);
+
+        mScheduler.setSpeed(1, NOW);
+        mScheduler.update(1, 0, NOW);
+        assertEquals((long) (LocationScheduler.MOVING_DISTANCE * 1000), mScheduler.getInterval());
+
+        //Interval is not shorter than the default one when moving fast
+        mScheduler.setSpeed(100, NOW);
+        mScheduler.update(1, 0, NOW);
+        assertEquals(INTERVAL, mScheduler.getInterval());
+
+        mScheduler.setAdaptive(false);
+        mScheduler.setSpeed(1, NOW);
+        mScheduler.update(1, 0, NOW);
+        assertEquals(INTERVAL, mScheduler.getInterval());
+    }
+}
@@ -0,0 +1,130 @@
+/******************************************************************************
+ *
+ *  2015 (C) Copyright Open-RnD Sp. z o.o.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package pl.openrnd.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures read latency of multi-process MappedObjectStorage while another process writes.
+ *
+ * Writer runs in a separate JVM started from {@link #main(String[])}, as file locks of one JVM
+ * cannot exclude each other.
+ *
+ * Benchmarks are excluded from the default test run, run them with: gradlew test -Pbenchmark
+ */
+public class MappedObjectStorageBenchmark {
+
+    private static final int KEY_COUNT = 16;
+    private static final int VALUE_SIZE = 2 * 1024;
+    private static final int WRITE_COUNT = 20000;
+    private static final long WRITER_TIMEOUT = 60 * 1000;
+    private static final long MAX_AVERAGE_READ_MICROS = 1000;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("benchmark", ".log");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+        new File(mFile.getPath() + ".lock").delete();
+        new File(mFile.getPath() + ".tmp").delete();
+    }
+
+    @Test(timeout = 2 * WRITER_TIMEOUT)
+    public void testReadLatencyDuringWrites() throws Exception {
+        MappedObjectStorage storage = new MappedObjectStorage(mFile, new JavaObjectSerializer(), true);
+
+        Process writer = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"), MappedObjectStorageBenchmark.class.getName(),
+                mFile.getPath(), String.valueOf(WRITE_COUNT)).redirectErrorStream(true).start();
+
+        long reads = 0;
+        long totalNanos = 0;
+        long deadline = System.currentTimeMillis() + WRITER_TIMEOUT;
+        try {
+            while (!isFinished(writer)) {
+                assertTrue("Writer timed out", System.currentTimeMillis() < deadline);
+
+                long start = System.nanoTime();
+                Object value = storage.getObject("key" + (reads % KEY_COUNT));
+                long nanos = System.nanoTime() - start;
+
+                if (value != null) {
+                    byte[] bytes = (byte[]) value;
+                    assertEquals(VALUE_SIZE, bytes.length);
+                    //Every value is written with the same byte, mixed bytes mean a torn read
+                    assertEquals(bytes[0], bytes[VALUE_SIZE - 1]);
+                }
+                reads++;
+                totalNanos += nanos;
+            }
+        } finally {
+            writer.destroy();
+            storage.close();
+        }
+
+        assertEquals(0, writer.exitValue());
+        assertTrue(reads > 0);
+        long averageMicros = totalNanos / reads / 1000;
+        assertTrue(String.format("Average read[%d us] of reads[%d]", averageMicros, reads),
+                averageMicros <= MAX_AVERAGE_READ_MICROS);
+    }
+
+    private static boolean isFinished(Process process) {
+        try {
+            process.exitValue();
+            return true;
+        } catch (IllegalThreadStateException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writer process entry point.
+     *
+     * @param args Log file path and number of writes.
+     */
+    public static void main(String[] args) {
+        MappedObjectStorage storage = new MappedObjectStorage(new File(args[0]), new JavaObjectSerializer(), true);
+        int count = Integer.parseInt(args[1]);
+
+        byte[] value = new byte[VALUE_SIZE];
+        for (int i = 0; i < count; i++) {
+            Arrays.fill(value, (byte) i);
+            if (!storage.putObject("key" + (i % KEY_COUNT), value)) {
+                System.exit(1);
+            }
+        }
+        storage.close();
+    }
+}
@@ -0,0 +1,226 @@
+/******************************************************************************
+ *
+ *  2015 (C) Copyright Open-RnD Sp. z o.o.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package pl.openrnd.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Two multi-process storages of one file stand for two processes. They are used from one thread,
+ * so their file locks never overlap.
+ */
+public class MappedObjectStorageTest {
+    private static final int HEADER_END_OFFSET = 8;
+
+    private File mFile;
+    private List<MappedObjectStorage> mStorages = new ArrayList<MappedObjectStorage>();
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("storage", ".log");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        for (MappedObjectStorage storage : mStorages) {
+            storage.close();
+        }
+        mFile.delete();
+        new File(mFile.getPath() + ".lock").delete();
+        new File(mFile.getPath() + ".tmp").delete();
+    }
+
+    @Test
+    public void testWriteOfOtherProcessIsVisible() {
+        MappedObjectStorage first = open(true);
+        MappedObjectStorage second = open(true);
+
+        first.putObject("key", "first");
+        assertEquals("first", second.getObject("key"));
+
+        first.putObject("key", "second");
+        second.putObject("other", "other");
+        assertEquals("second", second.getObject("key"));
+        assertEquals("other", first.getObject("other"));
+
+        first.removeObject("key");
+        assertNull(second.getObject("key"));
+    }
+
+    @Test
+    public void testListenersAreNotifiedAboutChangedKeys() {
+        MappedObjectStorage first = open(true);
+        MappedObjectStorage second = open(true);
+        final List<String> names = new ArrayList<String>();
+        second.registerOnObjectChangedListener(new MappedObjectStorage.OnObjectChangedListener() {
+            @Override
+            public void onObjectChanged(String name) {
+                names.add(name);
+            }
+        });
+
+        first.putObject("first", "value");
+        first.putObject("second", "value");
+        first.removeObject("first");
+        second.refresh();
+        assertEquals(Arrays.asList("first", "second", "first"), names);
+
+        //Own writes are not reported
+        second.putObject("third", "value");
+        second.refresh();
+        assertEquals(3, names.size());
+    }
+
+    @Test
+    public void testCompactionWhileOtherProcessHasFileMapped() {
+        MappedObjectStorage first = open(true);
+        MappedObjectStorage second = open(true);
+
+        for (int i = 0; i < 100; ++i) {
+            first.putObject("key" + (i % 4), "value" + i);
+        }
+        assertEquals("value99", second.getObject("key3"));
+
+        first.compact();
+        first.putObject("key0", "compacted");
+        assertEquals("compacted", second.getObject("key0"));
+        assertEquals("value97", second.getObject("key1"));
+
+        second.putObject("key1", "second");
+        assertEquals("second", first.getObject("key1"));
+    }
+
+    @Test
+    public void testMalformedRecordIsTruncatedWhenOpened() throws IOException {
+        MappedObjectStorage storage = open(false);
+        storage.putObject("first", "value");
+        storage.putObject("second", "value");
+        storage.close();
+        mStorages.remove(storage);
+
+        //CRC of the last record does not match, e.g. its pages were not written before a crash
+        corruptLastRecord();
+
+        storage = open(false);
+        assertEquals("value", storage.getObject("first"));
+        assertNull(storage.getObject("second"));
+
+        storage.putObject("third", "value");
+        storage.close();
+        mStorages.remove(storage);
+
+        storage = open(false);
+        assertEquals("value", storage.getObject("first"));
+        assertNull(storage.getObject("second"));
+        assertEquals("value", storage.getObject("third"));
+    }
+
+    @Test
+    public void testTornRecordAfterEndIsTruncatedWhenOpened() throws IOException {
+        MappedObjectStorage storage = open(false);
+        storage.putObject("first", "value");
+        storage.close();
+        mStorages.remove(storage);
+
+        //END covers a record which was not written
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            long end = readEnd(file);
+            file.seek(HEADER_END_OFFSET);
+            file.writeLong(end + 64);
+        } finally {
+            file.close();
+        }
+
+        storage = open(false);
+        assertEquals("value", storage.getObject("first"));
+        storage.putObject("second", "value");
+        assertEquals("value", open(false).getObject("second"));
+    }
+
+    @Test
+    public void testTruncationByOtherProcessIsRead() throws IOException {
+        MappedObjectStorage first = open(true);
+        MappedObjectStorage second = open(true);
+
+        first.putObject("first", "value");
+        assertEquals("value", second.getObject("first"));
+        first.putObject("second", "value");
+        corruptLastRecord();
+
+        //Reader skips the malformed record without truncating the log
+        long end = readEnd();
+        assertNull(second.getObject("second"));
+        assertEquals(end, readEnd());
+
+        //Writer truncates the log and appends a record longer than the malformed one
+        char[] value = new char[1024];
+        Arrays.fill(value, 'x');
+        second.putObject("third", new String(value));
+
+        assertEquals(new String(value), first.getObject("third"));
+        assertNull(first.getObject("second"));
+        assertEquals("value", first.getObject("first"));
+    }
+
+    private MappedObjectStorage open(boolean isMultiProcess) {
+        MappedObjectStorage storage = new MappedObjectStorage(mFile, new JavaObjectSerializer(), isMultiProcess);
+        mStorages.add(storage);
+        return storage;
+    }
+
+    private void corruptLastRecord() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            long position = readEnd(file) - 1;
+            file.seek(position);
+            int value = file.read();
+            file.seek(position);
+            file.write(value ^ 1);
+        } finally {
+            file.close();
+        }
+    }
+
+    private long readEnd() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "r");
+        try {
+            return readEnd(file);
+        } finally {
+            file.close();
+        }
+    }
+
+    private static long readEnd(RandomAccessFile file) throws IOException {
+        file.seek(HEADER_END_OFFSET);
+        return file.readLong();
+    }
+}
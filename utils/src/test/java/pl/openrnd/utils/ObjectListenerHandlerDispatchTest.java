@@ -0,0 +1,245 @@
+/******************************************************************************
+ *
+ *  2015 (C) Copyright Open-RnD Sp. z o.o.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package pl.openrnd.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ObjectListenerHandlerDispatchTest {
+
+    private interface OnChangeListener {
+        void onChange(Object event);
+    }
+
+    private static class RecordingListener implements OnChangeListener {
+        private final String mName;
+        private final List<String> mRecord;
+
+        private RecordingListener(String name, List<String> record) {
+            mName = name;
+            mRecord = record;
+        }
+
+        @Override
+        public void onChange(Object event) {
+            mRecord.add(mName + event);
+        }
+    }
+
+    /**
+     * Executor which keeps posted Runnables until they are run by the test.
+     */
+    private static class RecordingExecutor implements Executor {
+        private final List<Runnable> mRunnables = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable runnable) {
+            mRunnables.add(runnable);
+        }
+
+        private int getPostedCount() {
+            return mRunnables.size();
+        }
+
+        private void runAll() {
+            while (!mRunnables.isEmpty()) {
+                mRunnables.remove(0).run();
+            }
+        }
+    }
+
+    /**
+     * Handler with a fake clock which keeps delayed dispatches until they are run by the test.
+     */
+    private static class FakeClockHandler extends ObjectListenerHandler<OnChangeListener> {
+        private long mNow = 1000;
+        private final List<Runnable> mScheduled = new ArrayList<Runnable>();
+        private final List<Long> mDelays = new ArrayList<Long>();
+
+        @Override
+        long uptimeMillis() {
+            return mNow;
+        }
+
+        @Override
+        void schedule(Runnable runnable, long delay) {
+            mScheduled.add(runnable);
+            mDelays.add(delay);
+        }
+
+        private void runScheduled() {
+            while (!mScheduled.isEmpty()) {
+                mScheduled.remove(0).run();
+            }
+        }
+    }
+
+    private static final ObjectListenerHandler.EventHandler<OnChangeListener, Object> ON_CHANGE =
+            new ObjectListenerHandler.EventHandler<OnChangeListener, Object>() {
+                @Override
+                public void runOnListener(OnChangeListener listener, Object event) {
+                    listener.onChange(event);
+                }
+            };
+
+    private FakeClockHandler mHandler;
+    private List<String> mRecord;
+    private RecordingExecutor mExecutor;
+
+    @Before
+    public void setUp() {
+        mHandler = new FakeClockHandler();
+        mRecord = new ArrayList<String>();
+        mExecutor = new RecordingExecutor();
+    }
+
+    @Test
+    public void testBurstPostedOnce() {
+        RecordingListener first = new RecordingListener("a", mRecord);
+        RecordingListener second = new RecordingListener("b", mRecord);
+        mHandler.registerObjectStrongListener(first, mExecutor);
+        mHandler.registerObjectWeakListener(second, mExecutor);
+
+        mHandler.notifyObjectChange(ON_CHANGE, "1");
+        mHandler.notifyObjectChange(ON_CHANGE, "2");
+        mHandler.notifyObjectChange(ON_CHANGE, "3");
+
+        assertTrue(mRecord.isEmpty());
+        assertEquals(1, mExecutor.getPostedCount());
+
+        mExecutor.runAll();
+        assertEquals(Arrays.asList("a1", "b1", "a2", "b2", "a3", "b3"), mRecord);
+
+        mHandler.notifyObjectChange(ON_CHANGE, "4");
+        assertEquals(1, mExecutor.getPostedCount());
+        mExecutor.runAll();
+        assertEquals(Arrays.asList("a1", "b1", "a2", "b2", "a3", "b3", "a4", "b4"), mRecord);
+    }
+
+    @Test
+    public void testListenersNotifiedOnTheirTargets() {
+        RecordingExecutor otherExecutor = new RecordingExecutor();
+        mHandler.registerObjectStrongListener(new RecordingListener("a", mRecord), mExecutor);
+        mHandler.registerObjectStrongListener(new RecordingListener("b", mRecord), otherExecutor);
+        mHandler.registerObjectStrongListener(new RecordingListener("c", mRecord));
+
+        mHandler.notifyObjectChange(ON_CHANGE, "1");
+        mHandler.notifyObjectChange(ON_CHANGE, "2");
+
+        assertEquals(Arrays.asList("c1", "c2"), mRecord);
+        assertEquals(1, mExecutor.getPostedCount());
+        assertEquals(1, otherExecutor.getPostedCount());
+
+        otherExecutor.runAll();
+        mExecutor.runAll();
+        assertEquals(Arrays.asList("c1", "c2", "b1", "b2", "a1", "a2"), mRecord);
+    }
+
+    @Test
+    public void testFailedListenerDoesNotStopBatch() {
+        OnChangeListener failingListener = new OnChangeListener() {
+            @Override
+            public void onChange(Object event) {
+                throw new IllegalStateException("failed " + event);
+            }
+        };
+        mHandler.registerObjectStrongListener(failingListener, null, 10, mExecutor);
+        mHandler.registerObjectStrongListener(new RecordingListener("a", mRecord), mExecutor);
+
+        mHandler.notifyObjectChange(ON_CHANGE, "1");
+        mHandler.notifyObjectChange(ON_CHANGE, "2");
+        mExecutor.runAll();
+
+        assertEquals(Arrays.asList("a1", "a2"), mRecord);
+    }
+
+    @Test
+    public void testConflationKeepsNewestNotification() {
+        mHandler.setConflationEnabled(true);
+        mHandler.registerObjectStrongListener(new RecordingListener("a", mRecord), mExecutor);
+        mHandler.registerObjectWeakListener(new RecordingListener("b", mRecord), mExecutor);
+
+        mHandler.notifyObjectChange(ON_CHANGE, "1");
+        mHandler.notifyObjectChange(ON_CHANGE, "2");
+        mHandler.notifyObjectChange(ON_CHANGE, "3");
+
+        assertEquals(1, mExecutor.getPostedCount());
+        mExecutor.runAll();
+        assertEquals(Arrays.asList("a3", "b3"), mRecord);
+
+        mHandler.notifyObjectChange(ON_CHANGE, "4");
+        mExecutor.runAll();
+        assertEquals(Arrays.asList("a3", "b3", "a4", "b4"), mRecord);
+    }
+
+    @Test
+    public void testConflationSkipsListenersWithoutTarget() {
+        mHandler.setConflationEnabled(true);
+        mHandler.registerObjectStrongListener(new RecordingListener("a", mRecord));
+
+        mHandler.notifyObjectChange(ON_CHANGE, "1");
+        mHandler.notifyObjectChange(ON_CHANGE, "2");
+
+        assertEquals(Arrays.asList("a1", "a2"), mRecord);
+        assertEquals(0, mExecutor.getPostedCount());
+    }
+
+    @Test
+    public void testMinDispatchIntervalDelaysNotification() {
+        mHandler.setConflationEnabled(true);
+        mHandler.setMinDispatchInterval(100);
+        mHandler.registerObjectStrongListener(new RecordingListener("a", mRecord), mExecutor);
+
+        mHandler.notifyObjectChange(ON_CHANGE, "1");
+        mExecutor.runAll();
+        assertEquals(Arrays.asList("a1"), mRecord);
+
+        mHandler.mNow += 40;
+        mHandler.notifyObjectChange(ON_CHANGE, "2");
+        mExecutor.runAll();
+        assertEquals(Arrays.asList("a1"), mRecord);
+        assertEquals(Arrays.asList(60L), mHandler.mDelays);
+
+        //Notification waiting for the interval is replaced and not posted again
+        mHandler.notifyObjectChange(ON_CHANGE, "3");
+        assertEquals(0, mExecutor.getPostedCount());
+
+        mHandler.mNow += 60;
+        mHandler.runScheduled();
+        assertEquals(1, mExecutor.getPostedCount());
+        mExecutor.runAll();
+        assertEquals(Arrays.asList("a1", "a3"), mRecord);
+
+        //Notification after the interval is delivered immediately
+        mHandler.mNow += 100;
+        mHandler.notifyObjectChange(ON_CHANGE, "4");
+        mExecutor.runAll();
+        assertEquals(Arrays.asList("a1", "a3", "a4"), mRecord);
+        assertEquals(1, mHandler.mDelays.size());
+    }
+}
@@ -0,0 +1,161 @@
+/******************************************************************************
+ *
+ *  2015 (C) Copyright Open-RnD Sp. z o.o.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package pl.openrnd.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ObjectListenerHandlerMetricsTest {
+
+    private interface OnChangeListener {
+        void onChange(Object event);
+    }
+
+    /**
+     * Handler with a fake clock advanced by listeners.
+     */
+    private static class FakeClockHandler extends ObjectListenerHandler<OnChangeListener> {
+        private long mNanoTime = 1000;
+
+        @Override
+        long nanoTime() {
+            return mNanoTime;
+        }
+    }
+
+    /**
+     * Listener which takes time passed as the event, throws if the event is negative.
+     */
+    private class TimedListener implements OnChangeListener {
+
+        @Override
+        public void onChange(Object event) {
+            long duration = (Long) event;
+            mHandler.mNanoTime += Math.abs(duration);
+            if (duration < 0) {
+                throw new IllegalStateException("failed");
+            }
+        }
+    }
+
+    private static final ObjectListenerHandler.EventHandler<OnChangeListener, Object> ON_CHANGE =
+            new ObjectListenerHandler.EventHandler<OnChangeListener, Object>() {
+                @Override
+                public void runOnListener(OnChangeListener listener, Object event) {
+                    listener.onChange(event);
+                }
+            };
+
+    private FakeClockHandler mHandler;
+    private TimedListener mListener;
+
+    @Before
+    public void setUp() {
+        mHandler = new FakeClockHandler();
+        mListener = new TimedListener();
+        mHandler.registerObjectStrongListener(mListener, "channel", 5, null);
+    }
+
+    @Test
+    public void testMetricsDisabledByDefault() {
+        assertFalse(mHandler.isMetricsEnabled());
+        mHandler.notifyObjectChange(ON_CHANGE, 10L);
+
+        ObjectListenerHandler.ListenerMetrics<OnChangeListener> metrics = getMetrics();
+        assertEquals(0, metrics.getCount());
+        assertEquals(0, metrics.getTotalTime());
+    }
+
+    @Test
+    public void testMetricsCollected() {
+        mHandler.setMetricsEnabled(true);
+        mHandler.notifyObjectChange(ON_CHANGE, 10L);
+        mHandler.notifyObjectChange(ON_CHANGE, 30L);
+        try {
+            mHandler.notifyObjectChange(ON_CHANGE, -5L);
+            fail();
+        } catch (IllegalStateException e) {
+            //Failed notification is measured too
+        }
+
+        ObjectListenerHandler.ListenerMetrics<OnChangeListener> metrics = getMetrics();
+        assertSame(mListener, metrics.getListener());
+        assertEquals("channel", metrics.getChannel());
+        assertEquals(5, metrics.getPriority());
+        assertEquals(3, metrics.getCount());
+        assertEquals(45, metrics.getTotalTime());
+        assertEquals(15, metrics.getAverageTime());
+        assertEquals(30, metrics.getMaxTime());
+        assertEquals(1, metrics.getExceptionCount());
+
+        //Metrics are kept when the listener is registered again
+        mHandler.registerObjectStrongListener(mListener);
+        assertEquals(3, getMetrics().getCount());
+
+        mHandler.resetMetrics();
+        assertEquals(0, getMetrics().getCount());
+        mHandler.notifyObjectChange(ON_CHANGE, 20L);
+        assertEquals(20, getMetrics().getMaxTime());
+    }
+
+    @Test
+    public void testSlowNotificationReported() {
+        final List<Long> durations = new ArrayList<Long>();
+        mHandler.setOnSlowNotificationListener(new ObjectListenerHandler.OnSlowNotificationListener<OnChangeListener>() {
+            @Override
+            public void onSlowNotification(OnChangeListener listener, long duration) {
+                assertSame(mListener, listener);
+                durations.add(duration);
+            }
+        }, 20);
+
+        mHandler.notifyObjectChange(ON_CHANGE, 10L);
+        mHandler.notifyObjectChange(ON_CHANGE, 20L);
+        mHandler.notifyObjectChange(ON_CHANGE, 25L);
+
+        assertEquals(Arrays.asList(25L), durations);
+        //Slow listener detection does not collect metrics
+        assertFalse(mHandler.isMetricsEnabled());
+        assertEquals(0, getMetrics().getCount());
+
+        mHandler.setMetricsEnabled(true);
+        mHandler.setOnSlowNotificationListener(null, 0);
+        mHandler.notifyObjectChange(ON_CHANGE, 30L);
+        assertTrue(mHandler.isMetricsEnabled());
+        assertEquals(1, durations.size());
+        assertEquals(1, getMetrics().getCount());
+    }
+
+    private ObjectListenerHandler.ListenerMetrics<OnChangeListener> getMetrics() {
+        List<ObjectListenerHandler.ListenerMetrics<OnChangeListener>> metrics = mHandler.getMetrics();
+        assertEquals(1, metrics.size());
+        return metrics.get(0);
+    }
+}
@@ -0,0 +1,297 @@
+/******************************************************************************
+ *
+ *  2015 (C) Copyright Open-RnD Sp. z o.o.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package pl.openrnd.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class ObjectListenerHandlerTest {
+
+    private static final int WARM_UP_COUNT = 100000;
+    private static final int NOTIFICATION_COUNT = 1000000;
+    private static final int MEASUREMENT_ROUNDS = 3;
+    private static final int REGISTRATION_COUNT = 100000;
+    private static final long GC_TIMEOUT = 10000;
+
+    private interface OnChangeListener {
+        void onChange(Object event);
+    }
+
+    private static class CountingListener implements OnChangeListener {
+        private int mCount;
+
+        @Override
+        public void onChange(Object event) {
+            mCount++;
+        }
+    }
+
+    private static class RecordingListener implements OnChangeListener {
+        private final String mName;
+        private final List<String> mRecord;
+
+        private RecordingListener(String name, List<String> record) {
+            mName = name;
+            mRecord = record;
+        }
+
+        @Override
+        public void onChange(Object event) {
+            mRecord.add(mName + event);
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            return (object instanceof RecordingListener) && mName.equals(((RecordingListener) object).mName);
+        }
+
+        @Override
+        public int hashCode() {
+            return mName.hashCode();
+        }
+    }
+
+    private static class CountingOnEmptyListener implements ObjectListenerHandler.OnEmptyListener {
+        private int mCount;
+
+        @Override
+        public void onEmpty() {
+            mCount++;
+        }
+    }
+
+    private static final ObjectListenerHandler.EventHandler<OnChangeListener, Object> ON_CHANGE =
+            new ObjectListenerHandler.EventHandler<OnChangeListener, Object>() {
+                @Override
+                public void runOnListener(OnChangeListener listener, Object event) {
+                    listener.onChange(event);
+                }
+            };
+
+    private ObjectListenerHandler<OnChangeListener> mHandler;
+    private CountingListener mStrongListener;
+    private CountingListener mWeakListener;
+
+    @Before
+    public void setUp() {
+        mHandler = new ObjectListenerHandler<OnChangeListener>();
+        mStrongListener = new CountingListener();
+        mWeakListener = new CountingListener();
+        mHandler.registerObjectStrongListener(mStrongListener);
+        mHandler.registerObjectWeakListener(mWeakListener);
+    }
+
+    @Test
+    public void testNotificationDoesNotAllocate() {
+        java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+        assumeTrue(allocationMXBean.isThreadAllocatedMemorySupported());
+        allocationMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        Object event = new Object();
+        for (int i = 0; i < WARM_UP_COUNT; i++) {
+            mHandler.notifyObjectChange(ON_CHANGE, event);
+        }
+
+        //A recompilation during a round may allocate, an allocation per notification shows up in every round
+        long threadId = Thread.currentThread().getId();
+        long allocated = Long.MAX_VALUE;
+        for (int round = 0; round < MEASUREMENT_ROUNDS; round++) {
+            long allocatedBefore = allocationMXBean.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < NOTIFICATION_COUNT; i++) {
+                mHandler.notifyObjectChange(ON_CHANGE, event);
+            }
+            allocated = Math.min(allocated, allocationMXBean.getThreadAllocatedBytes(threadId) - allocatedBefore);
+        }
+
+        assertEquals(WARM_UP_COUNT + MEASUREMENT_ROUNDS * NOTIFICATION_COUNT, mStrongListener.mCount);
+        assertEquals(WARM_UP_COUNT + MEASUREMENT_ROUNDS * NOTIFICATION_COUNT, mWeakListener.mCount);
+        //Tolerates allocations of the measurement itself, a single object per notification would take megabytes
+        assertTrue(String.format("Allocated %d bytes", allocated), allocated < 1024);
+    }
+
+    @Test
+    public void testListenersNotifiedByPriorityAndChannel() {
+        List<String> record = new ArrayList<String>();
+        ObjectListenerHandler<OnChangeListener> handler = new ObjectListenerHandler<OnChangeListener>();
+        RecordingListener first = new RecordingListener("a", record);
+        RecordingListener second = new RecordingListener("b", record);
+        RecordingListener important = new RecordingListener("c", record);
+        RecordingListener channel = new RecordingListener("d", record);
+        handler.registerObjectStrongListener(first);
+        handler.registerObjectWeakListener(second);
+        handler.registerObjectStrongListener(important, null, 10, null);
+        handler.registerObjectStrongListener(channel, "channel", 0, null);
+
+        handler.notifyObjectChange(ON_CHANGE, "1");
+        handler.notifyObjectChange("channel", ON_CHANGE, "2");
+        handler.notifyObjectChange("other", ON_CHANGE, "3");
+        handler.unregisterObjectStrongListener(important);
+        handler.notifyObjectChange(ON_CHANGE, "4");
+
+        assertEquals(Arrays.asList("c1", "a1", "b1", "d1", "d2", "a4", "b4", "d4"), record);
+        assertEquals(0, handler.unregisterObjectWeakListener(second));
+    }
+
+    @Test
+    public void testStrongListenerMatchedByReference() {
+        List<String> record = new ArrayList<String>();
+        ObjectListenerHandler<OnChangeListener> handler = new ObjectListenerHandler<OnChangeListener>();
+        RecordingListener listener = new RecordingListener("a", record);
+        RecordingListener equalListener = new RecordingListener("a", record);
+
+        assertEquals(1, handler.registerObjectStrongListener(listener));
+        assertEquals(2, handler.registerObjectStrongListener(equalListener));
+        assertEquals(1, handler.unregisterObjectStrongListener(equalListener));
+        assertEquals(1, handler.unregisterObjectStrongListener(equalListener));
+
+        handler.notifyObjectChange(ON_CHANGE, "1");
+        assertEquals(Arrays.asList("a1"), record);
+    }
+
+    @Test
+    public void testReplacedListenerNotifiedOnce() {
+        List<String> record = new ArrayList<String>();
+        ObjectListenerHandler<OnChangeListener> handler = new ObjectListenerHandler<OnChangeListener>();
+        RecordingListener listener = new RecordingListener("a", record);
+        handler.registerObjectStrongListener(listener);
+        handler.notifyObjectChange(ON_CHANGE, "1");
+
+        handler.registerObjectStrongListener(listener, "channel", 10, null);
+        handler.notifyObjectChange(ON_CHANGE, "2");
+        handler.notifyObjectChange("channel", ON_CHANGE, "3");
+
+        assertEquals(Arrays.asList("a1", "a2", "a3"), record);
+    }
+
+    @Test(timeout = 10000)
+    public void testManyRegistrations() {
+        ObjectListenerHandler<OnChangeListener> handler = new ObjectListenerHandler<OnChangeListener>();
+        CountingListener[] listeners = new CountingListener[REGISTRATION_COUNT];
+        for (int i = 0; i < REGISTRATION_COUNT; i++) {
+            listeners[i] = new CountingListener();
+            //Registration does not copy snapshot of all listeners
+            handler.registerObjectStrongListener(listeners[i], "channel" + (i % 2), 0, null);
+        }
+        handler.notifyObjectChange(ON_CHANGE, "1");
+        handler.notifyObjectChange("channel0", ON_CHANGE, "2");
+
+        for (int i = 0; i < REGISTRATION_COUNT; i += 2) {
+            handler.unregisterObjectStrongListener(listeners[i]);
+        }
+        handler.notifyObjectChange(ON_CHANGE, "3");
+
+        for (int i = 0; i < REGISTRATION_COUNT; i++) {
+            assertEquals(2, listeners[i].mCount);
+        }
+    }
+
+    @Test
+    public void testRegistrationsDuringConcurrentNotifications() throws InterruptedException {
+        final ObjectListenerHandler<OnChangeListener> handler = new ObjectListenerHandler<OnChangeListener>();
+        final CountingListener listener = new CountingListener();
+        handler.registerObjectStrongListener(listener);
+
+        final int notificationCount = 10000;
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final int priority = i - 2;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < notificationCount; j++) {
+                            CountingListener other = new CountingListener();
+                            handler.registerObjectWeakListener(other, null, priority, null);
+                            handler.registerObjectStrongListener(listener, null, priority, null);
+                            handler.unregisterObjectWeakListener(other);
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        for (int i = 0; i < notificationCount; i++) {
+            handler.notifyObjectChange(ON_CHANGE, "1");
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue(errors.toString(), errors.isEmpty());
+        //Listener being re-registered with another priority is notified exactly once per notification
+        assertEquals(notificationCount, listener.mCount);
+        assertEquals(1, handler.getListenerCount());
+    }
+
+    @Test
+    public void testOnEmptyAfterLastListenerUnregistered() {
+        CountingOnEmptyListener onEmptyListener = new CountingOnEmptyListener();
+        mHandler.setOnEmptyListener(onEmptyListener);
+
+        mHandler.unregisterObjectWeakListener(mWeakListener);
+        assertEquals(0, onEmptyListener.mCount);
+        mHandler.unregisterObjectStrongListener(mStrongListener);
+        assertEquals(1, onEmptyListener.mCount);
+
+        //Un-registering not registered listener does not report empty handler again
+        mHandler.unregisterObjectStrongListener(mStrongListener);
+        assertEquals(1, onEmptyListener.mCount);
+    }
+
+    @Test(timeout = 2 * GC_TIMEOUT)
+    public void testCollectedWeakListenerPurged() throws InterruptedException {
+        ObjectListenerHandler<OnChangeListener> handler = new ObjectListenerHandler<OnChangeListener>();
+        CountingOnEmptyListener onEmptyListener = new CountingOnEmptyListener();
+        handler.setOnEmptyListener(onEmptyListener);
+        registerUnreachableListener(handler);
+
+        long deadline = System.currentTimeMillis() + GC_TIMEOUT;
+        while ((handler.getListenerCount() != 0) && (System.currentTimeMillis() < deadline)) {
+            System.gc();
+            Thread.sleep(10);
+        }
+
+        assertEquals(0, handler.getListenerCount());
+        assertEquals(1, onEmptyListener.mCount);
+
+        handler.notifyObjectChange(ON_CHANGE, "1");
+        assertEquals(1, onEmptyListener.mCount);
+    }
+
+    private static void registerUnreachableListener(ObjectListenerHandler<OnChangeListener> handler) {
+        assertEquals(1, handler.registerObjectWeakListener(new CountingListener()));
+    }
+}
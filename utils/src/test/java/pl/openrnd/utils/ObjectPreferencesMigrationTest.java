@@ -0,0 +1,346 @@
+/******************************************************************************
+ *
+ *  2015 (C) Copyright Open-RnD Sp. z o.o.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package pl.openrnd.utils;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Robolectric provides Base64 used for stored texts, SharedPreferences are faked so writes
+ * can be interleaved with migration.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class ObjectPreferencesMigrationTest {
+    private static final String KEY = "key";
+
+    private FakeSharedPreferences mSharedPreferences;
+    private ObjectPreferences mObjectPreferences;
+
+    @Before
+    public void setUp() {
+        mSharedPreferences = new FakeSharedPreferences();
+        mObjectPreferences = new ObjectPreferences("test", new FakeContext(mSharedPreferences));
+    }
+
+    @Test
+    public void testObjectIsStoredWithVersionHeader() {
+        mObjectPreferences.setMigrationRegistry(new ObjectMigrationRegistry()
+                .register(KEY, 0, new AppendingMigration("-1")));
+
+        mObjectPreferences.putObject(KEY, "value");
+
+        assertTrue(mSharedPreferences.getString(KEY, null).startsWith("#1#"));
+        assertEquals("value", mObjectPreferences.getObject(KEY));
+    }
+
+    @Test
+    public void testObjectWithoutHeaderIsMigratedThroughAllVersions() {
+        mObjectPreferences.putObject(KEY, "value");
+        AppendingMigration first = new AppendingMigration("-1");
+        AppendingMigration second = new AppendingMigration("-2");
+        mObjectPreferences.setMigrationRegistry(new ObjectMigrationRegistry()
+                .register(KEY, 0, first)
+                .register(KEY, 1, second));
+
+        assertEquals("value-1-2", mObjectPreferences.getObject(KEY));
+        assertTrue(mSharedPreferences.getString(KEY, null).startsWith("#2#"));
+
+        //Migrated object is written back, so it is not migrated again
+        assertEquals("value-1-2", mObjectPreferences.getObject(KEY));
+        assertEquals(1, first.mCount);
+        assertEquals(1, second.mCount);
+    }
+
+    @Test
+    public void testObjectIsMigratedFromStoredVersion() {
+        mObjectPreferences.setMigrationRegistry(new ObjectMigrationRegistry()
+                .register(KEY, 0, new AppendingMigration("-1")));
+        mObjectPreferences.putObject(KEY, "value");
+        AppendingMigration first = new AppendingMigration("-x");
+        mObjectPreferences.setMigrationRegistry(new ObjectMigrationRegistry()
+                .register(KEY, 0, first)
+                .register(KEY, 1, new AppendingMigration("-2")));
+
+        assertEquals("value-2", mObjectPreferences.getObject(KEY));
+        assertEquals(0, first.mCount);
+    }
+
+    @Test
+    public void testMissingMigrationIsReported() {
+        mObjectPreferences.putObject(KEY, "value");
+        String stored = mSharedPreferences.getString(KEY, null);
+        mObjectPreferences.setMigrationRegistry(new ObjectMigrationRegistry()
+                .register(KEY, 0, new AppendingMigration("-1"))
+                .register(KEY, 2, new AppendingMigration("-3")));
+
+        try {
+            mObjectPreferences.getObject(KEY);
+            fail("Missing migration not reported");
+        } catch (IllegalStateException e) {
+            //Expected
+        }
+        assertEquals(stored, mSharedPreferences.getString(KEY, null));
+    }
+
+    @Test
+    public void testMalformedHeaderIsReported() {
+        String[] texts = new String[] {"#1", "#x#AAAA"};
+        for (String text : texts) {
+            mSharedPreferences.edit().putString(KEY, text).commit();
+            try {
+                mObjectPreferences.getObject(KEY);
+                fail(String.format("Malformed header not reported: %s", text));
+            } catch (IllegalStateException e) {
+                //Expected
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentWriteIsNotOverwrittenByMigration() throws InterruptedException {
+        mObjectPreferences.putObject(KEY, "old");
+        mObjectPreferences.setMigrationRegistry(new ObjectMigrationRegistry()
+                .register(KEY, 0, new AppendingMigration("-1")));
+
+        final Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mObjectPreferences.putObject(KEY, "new");
+            }
+        });
+        //Object is written by another thread while migrated object is being written back
+        mSharedPreferences.mOnEdit = new Runnable() {
+            @Override
+            public void run() {
+                writer.start();
+                try {
+                    writer.join(200);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+
+        assertEquals("old-1", mObjectPreferences.getObject(KEY));
+        writer.join();
+
+        assertEquals("new", mObjectPreferences.getObject(KEY));
+    }
+
+    /**
+     * Migration appending suffix to stored String.
+     */
+    private static class AppendingMigration implements ObjectMigration {
+        private final String mSuffix;
+        private int mCount;
+
+        private AppendingMigration(String suffix) {
+            mSuffix = suffix;
+        }
+
+        @Override
+        public void migrate(InputStream inputStream, OutputStream outputStream) throws IOException {
+            ++mCount;
+            JavaObjectSerializer serializer = new JavaObjectSerializer();
+            serializer.serialize(serializer.deserialize(inputStream) + mSuffix, outputStream);
+        }
+    }
+
+    private static class FakeContext extends ContextWrapper {
+        private final SharedPreferences mSharedPreferences;
+
+        private FakeContext(SharedPreferences sharedPreferences) {
+            super(null);
+            mSharedPreferences = sharedPreferences;
+        }
+
+        @Override
+        public Context getApplicationContext() {
+            return this;
+        }
+
+        @Override
+        public SharedPreferences getSharedPreferences(String name, int mode) {
+            return mSharedPreferences;
+        }
+    }
+
+    /**
+     * In memory SharedPreferences running a one shot hook when an editor is created.
+     */
+    private static class FakeSharedPreferences implements SharedPreferences {
+        private final Map<String, Object> mValues = new HashMap<String, Object>();
+        private volatile Runnable mOnEdit;
+
+        @Override
+        public synchronized Map<String, ?> getAll() {
+            return new HashMap<String, Object>(mValues);
+        }
+
+        @Override
+        public synchronized String getString(String key, String defValue) {
+            return mValues.containsKey(key) ? (String) mValues.get(key) : defValue;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public synchronized Set<String> getStringSet(String key, Set<String> defValues) {
+            return mValues.containsKey(key) ? (Set<String>) mValues.get(key) : defValues;
+        }
+
+        @Override
+        public synchronized int getInt(String key, int defValue) {
+            return mValues.containsKey(key) ? (Integer) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public synchronized long getLong(String key, long defValue) {
+            return mValues.containsKey(key) ? (Long) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public synchronized float getFloat(String key, float defValue) {
+            return mValues.containsKey(key) ? (Float) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public synchronized boolean getBoolean(String key, boolean defValue) {
+            return mValues.containsKey(key) ? (Boolean) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public synchronized boolean contains(String key) {
+            return mValues.containsKey(key);
+        }
+
+        @Override
+        public Editor edit() {
+            Runnable onEdit = mOnEdit;
+            mOnEdit = null;
+            if (onEdit != null) {
+                onEdit.run();
+            }
+            return new FakeEditor();
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        }
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        }
+
+        private class FakeEditor implements Editor {
+            private final Map<String, Object> mChanges = new HashMap<String, Object>();
+            private boolean mIsCleared = false;
+
+            @Override
+            public Editor putString(String key, String value) {
+                mChanges.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putStringSet(String key, Set<String> values) {
+                mChanges.put(key, values);
+                return this;
+            }
+
+            @Override
+            public Editor putInt(String key, int value) {
+                mChanges.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putLong(String key, long value) {
+                mChanges.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putFloat(String key, float value) {
+                mChanges.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putBoolean(String key, boolean value) {
+                mChanges.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor remove(String key) {
+                mChanges.put(key, null);
+                return this;
+            }
+
+            @Override
+            public Editor clear() {
+                mIsCleared = true;
+                return this;
+            }
+
+            @Override
+            public boolean commit() {
+                synchronized (FakeSharedPreferences.this) {
+                    if (mIsCleared) {
+                        mValues.clear();
+                    }
+                    for (Map.Entry<String, Object> entry : mChanges.entrySet()) {
+                        if (entry.getValue() == null) {
+                            mValues.remove(entry.getKey());
+                        } else {
+                            mValues.put(entry.getKey(), entry.getValue());
+                        }
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public void apply() {
+                commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/******************************************************************************
+ *
+ *  2015 (C) Copyright Open-RnD Sp. z o.o.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package pl.openrnd.utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class ObjectSerializerUtilsTest {
+
+    @Test
+    public void testBufferFingerprintMatchesObjectFingerprint() {
+        ArrayList<String> object = new ArrayList<String>(Arrays.asList("first", "second"));
+
+        ObjectSerializerUtils.ReusableBuffer buffer = ObjectSerializerUtils.serializeToBuffer(object);
+        byte[] fingerprint = ObjectSerializerUtils.fingerprint(buffer);
+        ObjectSerializerUtils.recycleBuffer(buffer);
+
+        assertArrayEquals(ObjectSerializerUtils.fingerprint(object), fingerprint);
+    }
+
+    @Test
+    public void testSerializedObjectIsWrittenWithoutSerializing() throws IOException {
+        ArrayList<String> object = new ArrayList<String>(Arrays.asList("first", "second"));
+        ObjectSerializerUtils.SerializedObject serializedObject = createSerializedObject(object);
+
+        //Object modified after it was serialized is not serialized again
+        object.add("third");
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ObjectSerializerUtils.serialize(serializedObject, new JavaObjectSerializer(), outputStream);
+
+        Object result = new JavaObjectSerializer().deserialize(new ByteArrayInputStream(outputStream.toByteArray()));
+        assertEquals(Arrays.asList("first", "second"), result);
+    }
+
+    @Test
+    public void testSerializedObjectIsSerializedWithOtherFormat() throws IOException {
+        ArrayList<String> object = new ArrayList<String>(Arrays.asList("first", "second"));
+        RecordingSerializer serializer = new RecordingSerializer();
+
+        ObjectSerializerUtils.serialize(createSerializedObject(object), serializer, new ByteArrayOutputStream());
+
+        assertSame(object, serializer.mSerializedObject);
+    }
+
+    @Test
+    public void testSnapshotIsNotAffectedByModifications() throws IOException {
+        ArrayList<String> object = new ArrayList<String>(Arrays.asList("first", "second"));
+        ObjectSerializerUtils.ReusableBuffer buffer = ObjectSerializerUtils.serializeToBuffer(object);
+        ObjectSerializerUtils.SerializedObject snapshot = new ObjectSerializerUtils.SerializedObject(buffer);
+        ObjectSerializerUtils.recycleBuffer(buffer);
+
+        object.add("third");
+        RecordingSerializer serializer = new RecordingSerializer();
+        ObjectSerializerUtils.serialize(snapshot, serializer, new ByteArrayOutputStream());
+
+        assertEquals(Arrays.asList("first", "second"), serializer.mSerializedObject);
+        assertArrayEquals(ObjectSerializerUtils.fingerprint(new ArrayList<String>(Arrays.asList("first", "second"))),
+                ObjectSerializerUtils.fingerprint(snapshot));
+    }
+
+    private static ObjectSerializerUtils.SerializedObject createSerializedObject(Object object) {
+        ObjectSerializerUtils.ReusableBuffer buffer = ObjectSerializerUtils.serializeToBuffer(object);
+        try {
+            return new ObjectSerializerUtils.SerializedObject(object, buffer);
+        } finally {
+            ObjectSerializerUtils.recycleBuffer(buffer);
+        }
+    }
+
+    private static class RecordingSerializer implements ObjectSerializer {
+        private Object mSerializedObject;
+
+        @Override
+        public void serialize(Object object, OutputStream outputStream) throws IOException {
+            mSerializedObject = object;
+        }
+
+        @Override
+        public Object deserialize(InputStream inputStream) throws IOException {
+            return null;
+        }
+    }
+}